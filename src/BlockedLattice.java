@@ -0,0 +1,269 @@
+import java.util.Arrays;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.Sequence;
+
+/**
+ * A {@link DenseLattice} whose recurrences run over dense state-by-state
+ * score matrices instead of transition lists.
+ * <p>
+ * After the transitions of an input are scored they are scattered into one
+ * <code>[destination][source]</code> matrix per position, and one
+ * <code>[source][destination]</code> copy for the backward pass, with
+ * missing transitions set to minus infinity. The inner max and log-sum
+ * loops then read two contiguous rows with no indirection and are unrolled
+ * by four, the shape HotSpot's superword pass turns into SIMD code. It pays
+ * off when most state pairs are connected, as in fully connected first-order
+ * models; for sparse higher-order state spaces the scalar lattice is cheaper.
+ */
+public class BlockedLattice extends DenseLattice
+{
+    // cell[d * S + s] is the transition from s to d, or -1
+    private final int[] cell;
+
+    private double[] inMatrix, outMatrix;
+    private float[] inMatrixF, outMatrixF;
+
+    public BlockedLattice(DenseCRF model)
+    {
+        super(model);
+        int S = model.numStates;
+        cell = new int[S * S];
+        Arrays.fill(cell, -1);
+        for (int t = 0; t < model.numTransitions; t++)
+            cell[model.transitionDest[t] * S + model.transitionSource[t]] = t;
+        if (single)
+            inMatrixF = outMatrixF = new float[0];
+        else
+            inMatrix = outMatrix = new double[0];
+    }
+
+    @Override
+    public void setInput(Sequence input)
+    {
+        super.setInput(input);
+        int S = model.numStates, T = model.numTransitions, SS = S * S;
+        int[] src = model.transitionSource, dst = model.transitionDest;
+        if (single)
+        {
+            if (inMatrixF.length < length * SS)
+            {
+                inMatrixF = new float[length * SS];
+                outMatrixF = new float[length * SS];
+            }
+            Arrays.fill(inMatrixF, 0, length * SS, Float.NEGATIVE_INFINITY);
+            Arrays.fill(outMatrixF, 0, length * SS, Float.NEGATIVE_INFINITY);
+            for (int ip = 0; ip < length; ip++)
+            {
+                int base = ip * SS, tr = ip * T;
+                for (int t = 0; t < T; t++)
+                {
+                    inMatrixF[base + dst[t] * S + src[t]] = transF[tr + t];
+                    outMatrixF[base + src[t] * S + dst[t]] = transF[tr + t];
+                }
+            }
+        }
+        else
+        {
+            if (inMatrix.length < length * SS)
+            {
+                inMatrix = new double[length * SS];
+                outMatrix = new double[length * SS];
+            }
+            Arrays.fill(inMatrix, 0, length * SS, Transducer.IMPOSSIBLE_WEIGHT);
+            Arrays.fill(outMatrix, 0, length * SS, Transducer.IMPOSSIBLE_WEIGHT);
+            for (int ip = 0; ip < length; ip++)
+            {
+                int base = ip * SS, tr = ip * T;
+                for (int t = 0; t < T; t++)
+                {
+                    inMatrix[base + dst[t] * S + src[t]] = trans[tr + t];
+                    outMatrix[base + src[t] * S + dst[t]] = trans[tr + t];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the largest <code>a[aOff + i] + b[bOff + i]</code> for i below n
+     */
+    private static double maxSum(double[] a, int aOff, double[] b, int bOff, int n)
+    {
+        double m0 = Transducer.IMPOSSIBLE_WEIGHT, m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (; i + 3 < n; i += 4)
+        {
+            m0 = Math.max(m0, a[aOff + i] + b[bOff + i]);
+            m1 = Math.max(m1, a[aOff + i + 1] + b[bOff + i + 1]);
+            m2 = Math.max(m2, a[aOff + i + 2] + b[bOff + i + 2]);
+            m3 = Math.max(m3, a[aOff + i + 3] + b[bOff + i + 3]);
+        }
+        for (; i < n; i++)
+            m0 = Math.max(m0, a[aOff + i] + b[bOff + i]);
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static float maxSum(float[] a, int aOff, float[] b, int bOff, int n)
+    {
+        float m0 = Float.NEGATIVE_INFINITY, m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (; i + 3 < n; i += 4)
+        {
+            m0 = Math.max(m0, a[aOff + i] + b[bOff + i]);
+            m1 = Math.max(m1, a[aOff + i + 1] + b[bOff + i + 1]);
+            m2 = Math.max(m2, a[aOff + i + 2] + b[bOff + i + 2]);
+            m3 = Math.max(m3, a[aOff + i + 3] + b[bOff + i + 3]);
+        }
+        for (; i < n; i++)
+            m0 = Math.max(m0, a[aOff + i] + b[bOff + i]);
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    /**
+     * @return <code>max + log(sum(exp(a[aOff + i] + b[bOff + i] - max)))</code>
+     */
+    private static double logSumExp(double[] a, int aOff, double[] b, int bOff, int n)
+    {
+        double max = maxSum(a, aOff, b, bOff, n);
+        if (max == Transducer.IMPOSSIBLE_WEIGHT)
+            return max;
+        double s0 = 0.0, s1 = 0.0;
+        int i = 0;
+        for (; i + 1 < n; i += 2)
+        {
+            s0 += Math.exp(a[aOff + i] + b[bOff + i] - max);
+            s1 += Math.exp(a[aOff + i + 1] + b[bOff + i + 1] - max);
+        }
+        for (; i < n; i++)
+            s0 += Math.exp(a[aOff + i] + b[bOff + i] - max);
+        return max + Math.log(s0 + s1);
+    }
+
+    private static float logSumExp(float[] a, int aOff, float[] b, int bOff, int n)
+    {
+        float max = maxSum(a, aOff, b, bOff, n);
+        if (max == Float.NEGATIVE_INFINITY)
+            return max;
+        double s0 = 0.0, s1 = 0.0;
+        int i = 0;
+        for (; i + 1 < n; i += 2)
+        {
+            s0 += Math.exp(a[aOff + i] + b[bOff + i] - max);
+            s1 += Math.exp(a[aOff + i + 1] + b[bOff + i + 1] - max);
+        }
+        for (; i < n; i++)
+            s0 += Math.exp(a[aOff + i] + b[bOff + i] - max);
+        return (float)(max + Math.log(s0 + s1));
+    }
+
+    @Override
+    protected void viterbiForward(double[] delta, double[] trans)
+    {
+        int S = model.numStates, SS = S * S;
+        for (int s = 0; s < S; s++)
+            delta[s] = model.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, base = ip * SS;
+            for (int d = 0; d < S; d++)
+            {
+                int row = base + d * S;
+                double best = maxSum(delta, in, inMatrix, row, S);
+                int arg = -1;
+                if (best != Transducer.IMPOSSIBLE_WEIGHT)
+                {
+                    // the lowest source reaching the maximum, as in the scalar lattice
+                    int s = 0;
+                    while (delta[in + s] + inMatrix[row + s] != best)
+                        s++;
+                    arg = cell[d * S + s];
+                }
+                delta[out + d] = best;
+                backPointer[in + d] = arg;
+            }
+        }
+    }
+
+    @Override
+    protected void viterbiForward(float[] delta, float[] trans)
+    {
+        int S = model.numStates, SS = S * S;
+        for (int s = 0; s < S; s++)
+            delta[s] = (float)model.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, base = ip * SS;
+            for (int d = 0; d < S; d++)
+            {
+                int row = base + d * S;
+                float best = maxSum(delta, in, inMatrixF, row, S);
+                int arg = -1;
+                if (best != Float.NEGATIVE_INFINITY)
+                {
+                    int s = 0;
+                    while (delta[in + s] + inMatrixF[row + s] != best)
+                        s++;
+                    arg = cell[d * S + s];
+                }
+                delta[out + d] = best;
+                backPointer[in + d] = arg;
+            }
+        }
+    }
+
+    @Override
+    protected void forward(double[] alpha, double[] trans)
+    {
+        int S = model.numStates, SS = S * S;
+        for (int s = 0; s < S; s++)
+            alpha[s] = model.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, base = ip * SS;
+            for (int d = 0; d < S; d++)
+                alpha[out + d] = logSumExp(alpha, in, inMatrix, base + d * S, S);
+        }
+    }
+
+    @Override
+    protected void forward(float[] alpha, float[] trans)
+    {
+        int S = model.numStates, SS = S * S;
+        for (int s = 0; s < S; s++)
+            alpha[s] = (float)model.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, base = ip * SS;
+            for (int d = 0; d < S; d++)
+                alpha[out + d] = logSumExp(alpha, in, inMatrixF, base + d * S, S);
+        }
+    }
+
+    @Override
+    protected void backward(double[] beta, double[] trans)
+    {
+        int S = model.numStates, SS = S * S;
+        for (int s = 0; s < S; s++)
+            beta[length * S + s] = model.finalWeight[s];
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int here = ip * S, next = here + S, base = ip * SS;
+            for (int s = 0; s < S; s++)
+                beta[here + s] = logSumExp(beta, next, outMatrix, base + s * S, S);
+        }
+    }
+
+    @Override
+    protected void backward(float[] beta, float[] trans)
+    {
+        int S = model.numStates, SS = S * S;
+        for (int s = 0; s < S; s++)
+            beta[length * S + s] = (float)model.finalWeight[s];
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int here = ip * S, next = here + S, base = ip * SS;
+            for (int s = 0; s < S; s++)
+                beta[here + s] = logSumExp(beta, next, outMatrixF, base + s * S, S);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Gazetteer protocol client for looking up many names, as feature lookup
+ * at tagging time does.
+ *
+ * Names that are not cached are sent in batches, each batch as a single
+ * query request that ORs together one exact name query per name, and the
+ * reports in the response are given back to the names they carry. A name
+ * that is already being looked up is not sent again; its lookup waits for
+ * the request in flight. Batches
+ * run on a fixed pool of threads, which bounds the number of requests in
+ * flight. Responses are read to the end and their streams closed, so that
+ * HttpURLConnection keeps the connections alive and reuses them; its pool
+ * keeps <code>http.maxConnections</code> (5 by default) idle connections
+ * per server, so that property should be at least the number of threads.
+ *
+ * Results, including names without places, are cached in an LRU map whose
+ * entries expire after a time to live. Responses are validated only if a
+ * local copy of the protocol schema is given; nothing is ever downloaded.
+ * The client is thread-safe.
+ */
+public class CachingGazetteerClient {
+
+    private static final String NAMESPACE = "http://www.alexandria.ucsb.edu/gazetteer";
+
+    /**
+     * Resource name of the protocol schema when it is bundled next to the
+     * classes.
+     */
+    public static final String SCHEMA_RESOURCE = "gazetteer-service.xsd";
+
+    private static class CacheEntry {
+        final List<GazetteerPlace> places;
+        final long expires;
+
+        CacheEntry(List<GazetteerPlace> places, long expires) {
+            this.places = places;
+            this.expires = expires;
+        }
+    }
+
+    private final URL server;
+    private final int batchSize;
+    private final long ttlMillis;
+    private final ExecutorService pool;
+    private final Map<String, CacheEntry> cache;
+    // lower-cased name -> request in flight for it, guarded by cache
+    private final Map<String, Batch> inFlight = new HashMap<String, Batch>();
+    private final GazetteerResponseParser parser;
+
+    private int connectTimeout = 10000;
+    private int readTimeout = 60000;
+
+    private int hits = 0;
+    private int misses = 0;
+    private int requests = 0;
+
+    /**
+     * @param server URL of the gazetteer server
+     * @param threads maximum number of requests in flight
+     * @param batchSize maximum number of names in one request
+     * @param cacheSize number of names whose places are cached
+     * @param ttlMillis how long cached places stay valid
+     * @param schema local protocol schema to validate responses against,
+     * or null not to validate
+     */
+    public CachingGazetteerClient(URL server, int threads, int batchSize,
+                                  final int cacheSize, long ttlMillis, URL schema) throws SAXException {
+        this.server = server;
+        this.batchSize = Math.max(1, batchSize);
+        this.ttlMillis = ttlMillis;
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gazetteer-client");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        // the schema is compiled once; parsers then never resolve it again
+        parser = new GazetteerResponseParser(schema);
+    }
+
+    /**
+     * @return the protocol schema bundled with the classes, or null if it
+     * is not; the schema is not part of this source tree
+     */
+    public static URL bundledSchema() {
+        return CachingGazetteerClient.class.getResource(SCHEMA_RESOURCE);
+    }
+
+    public void setTimeouts(int connectMillis, int readMillis) {
+        connectTimeout = connectMillis;
+        readTimeout = readMillis;
+    }
+
+    /**
+     * @return the places with a name, ignoring case
+     */
+    public List<GazetteerPlace> lookup(String name) throws IOException {
+        return lookup(Collections.singleton(name)).get(name);
+    }
+
+    /**
+     * @return the places with each name, ignoring case; every name is a key
+     */
+    public Map<String, List<GazetteerPlace>> lookup(Collection<String> names) throws IOException {
+        return lookupAsync(names).get();
+    }
+
+    /**
+     * Starts looking up names. Cached names are looked up right away; the
+     * others are sent to the server by the pool, unless a request for them
+     * is already in flight.
+     */
+    public Lookup lookupAsync(Collection<String> names) {
+        Map<String, List<GazetteerPlace>> found = new HashMap<String, List<GazetteerPlace>>();
+        List<String> missing = new ArrayList<String>();
+        Set<Future<Map<String, List<GazetteerPlace>>>> batches =
+                new LinkedHashSet<Future<Map<String, List<GazetteerPlace>>>>();
+        List<Batch> started = new ArrayList<Batch>();
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            Set<String> keys = new LinkedHashSet<String>();
+            for (String name : names) {
+                String key = key(name);
+                CacheEntry entry = cache.get(key);
+                if (entry != null && entry.expires <= now) {
+                    cache.remove(key);
+                    entry = null;
+                }
+                if (entry != null) {
+                    found.put(name, entry.places);
+                    hits++;
+                    continue;
+                }
+                missing.add(name);
+                misses++;
+                Batch batch = inFlight.get(key);
+                if (batch != null)
+                    batches.add(batch);
+                else
+                    keys.add(key);
+            }
+            List<String> send = new ArrayList<String>(keys);
+            for (int from = 0; from < send.size(); from += batchSize) {
+                Batch batch = new Batch(send.subList(from, Math.min(send.size(), from + batchSize)));
+                for (String key : batch.keys)
+                    inFlight.put(key, batch);
+                batches.add(batch);
+                started.add(batch);
+            }
+        }
+        for (Batch batch : started)
+            pool.execute(batch);
+        return new Lookup(found, missing, new ArrayList<Future<Map<String, List<GazetteerPlace>>>>(batches));
+    }
+
+    /**
+     * One query request, registered as in flight for its names until it is
+     * done.
+     */
+    private class Batch extends FutureTask<Map<String, List<GazetteerPlace>>> {
+        final List<String> keys;
+
+        Batch(final List<String> keys) {
+            super(new Callable<Map<String, List<GazetteerPlace>>>() {
+                public Map<String, List<GazetteerPlace>> call() throws IOException {
+                    return query(keys);
+                }
+            });
+            this.keys = keys;
+        }
+
+        protected void done() {
+            // the places are cached by now, or the lookup failed and may be tried again
+            synchronized (cache) {
+                for (String key : keys)
+                    if (inFlight.get(key) == this)
+                        inFlight.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Names being looked up.
+     */
+    public static class Lookup {
+        private final Map<String, List<GazetteerPlace>> found;
+        private final List<String> missing;
+        private final List<Future<Map<String, List<GazetteerPlace>>>> batches;
+
+        private Lookup(Map<String, List<GazetteerPlace>> found, List<String> missing,
+                       List<Future<Map<String, List<GazetteerPlace>>>> batches) {
+            this.found = found;
+            this.missing = missing;
+            this.batches = batches;
+        }
+
+        public boolean isDone() {
+            for (Future<?> batch : batches)
+                if (!batch.isDone())
+                    return false;
+            return true;
+        }
+
+        /**
+         * Waits for the server and returns the places with each name.
+         */
+        public Map<String, List<GazetteerPlace>> get() throws IOException {
+            return get(0, null);
+        }
+
+        /**
+         * @throws IOException also if the lookup takes longer than the timeout
+         */
+        public Map<String, List<GazetteerPlace>> get(long timeout, TimeUnit unit) throws IOException {
+            long deadline = unit == null ? 0 : System.nanoTime() + unit.toNanos(timeout);
+            Map<String, List<GazetteerPlace>> byKey = new HashMap<String, List<GazetteerPlace>>();
+            try {
+                for (Future<Map<String, List<GazetteerPlace>>> batch : batches)
+                    byKey.putAll(unit == null ? batch.get()
+                            : batch.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the gazetteer server");
+            } catch (TimeoutException e) {
+                throw new IOException("Gazetteer server timed out");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+            Map<String, List<GazetteerPlace>> ret = new HashMap<String, List<GazetteerPlace>>(found);
+            for (String name : missing)
+                ret.put(name, byKey.get(key(name)));
+            return ret;
+        }
+    }
+
+    /**
+     * Sends one query request for a batch of names and caches the places
+     * of each.
+     *
+     * @param keys lower-cased names
+     */
+    private Map<String, List<GazetteerPlace>> query(List<String> keys) throws IOException {
+        byte[] body = request(keys);
+        HttpURLConnection c = (HttpURLConnection)server.openConnection();
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setConnectTimeout(connectTimeout);
+        c.setReadTimeout(readTimeout);
+        c.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+        c.setFixedLengthStreamingMode(body.length);
+        OutputStream out = c.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        synchronized (cache) {
+            requests++;
+        }
+
+        int code = c.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            InputStream error = c.getErrorStream();
+            if (error != null)
+                drain(error);
+            throw new IOException("Gazetteer server " + server + " answered " + code);
+        }
+        PlaceFiler filer = new PlaceFiler(keys);
+        InputStream in = c.getInputStream();
+        try {
+            parser.parse(in, filer);
+            // the rest of the response has to be read for the connection to be reused
+            drain(in);
+        } catch (SAXException e) {
+            throw new IOException("Bad response from gazetteer server " + server + ": " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+
+        Map<String, List<GazetteerPlace>> ret = new HashMap<String, List<GazetteerPlace>>();
+        for (Map.Entry<String, List<GazetteerPlace>> e : filer.places.entrySet())
+            ret.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+        long expires = System.currentTimeMillis() + ttlMillis;
+        synchronized (cache) {
+            for (Map.Entry<String, List<GazetteerPlace>> e : ret.entrySet())
+                cache.put(e.getKey(), new CacheEntry(e.getValue(), expires));
+        }
+        return ret;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        try {
+            while (in.read(buf) >= 0)
+                ;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] request(List<String> keys) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(bytes, "UTF-8");
+        w.write("<?xml version=\"1.0\"?>" +
+                "<gazetteer-service xmlns=\"" + NAMESPACE + "\" version=\"1.2\">" +
+                "<query-request><gazetteer-query>");
+        if (keys.size() > 1)
+            w.write("<or>");
+        for (String key : keys) {
+            w.write("<name-query operator=\"equals\" text=\"");
+            escape(key, w);
+            w.write("\"/>");
+        }
+        if (keys.size() > 1)
+            w.write("</or>");
+        w.write("</gazetteer-query><report-format>standard</report-format>" +
+                "</query-request></gazetteer-service>");
+        w.close();
+        return bytes.toByteArray();
+    }
+
+    static void escape(String s, Writer w) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '&': w.write("&amp;"); break;
+            case '<': w.write("&lt;"); break;
+            case '>': w.write("&gt;"); break;
+            case '"': w.write("&quot;"); break;
+            default: w.write(ch);
+            }
+        }
+    }
+
+    static String key(String name) {
+        return name.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Files each reported place under every queried name it has.
+     */
+    private static class PlaceFiler implements GazetteerResponseParser.Sink {
+        final Map<String, List<GazetteerPlace>> places = new HashMap<String, List<GazetteerPlace>>();
+        private final Set<String> filed = new HashSet<String>();
+
+        PlaceFiler(List<String> keys) {
+            for (String key : keys)
+                places.put(key, new ArrayList<GazetteerPlace>(1));
+        }
+
+        public void place(String name, List<String> names, String type,
+                          double[] footprint, int footprintLength) {
+            GazetteerPlace place = null;
+            filed.clear();
+            for (String n : names) {
+                String key = key(n);
+                List<GazetteerPlace> list = places.get(key);
+                if (list != null && filed.add(key)) {
+                    if (place == null)
+                        place = new GazetteerPlace(name, type, Arrays.copyOf(footprint, footprintLength));
+                    list.add(place);
+                }
+            }
+        }
+    }
+
+    public int getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    public int getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return the number of requests sent to the server
+     */
+    public int getRequests() {
+        synchronized (cache) {
+            return requests;
+        }
+    }
+
+    /**
+     * Stops the pool once the requests in flight are done.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Looks up names and prints their places. With -validate, responses are
+     * validated against the bundled schema, and with -schema against a
+     * local copy; either is an error if the schema is missing.
+     */
+    public static void main(String[] args) throws Exception {
+        URL schema = null;
+        int i = 0;
+        if (i < args.length && args[i].equals("-validate")) {
+            schema = bundledSchema();
+            if (schema == null) {
+                System.err.println("No " + SCHEMA_RESOURCE + " next to the classes; give one with -schema");
+                System.exit(1);
+            }
+            i++;
+        } else if (i + 1 < args.length && args[i].equals("-schema")) {
+            File file = new File(args[i + 1]);
+            if (!file.isFile()) {
+                System.err.println("No schema " + file);
+                System.exit(1);
+            }
+            schema = file.toURI().toURL();
+            i += 2;
+        }
+        if (args.length - i < 2) {
+            System.err.println("usage: java CachingGazetteerClient [-validate | -schema file] server-url name...");
+            System.exit(1);
+        }
+        CachingGazetteerClient client = new CachingGazetteerClient(new URL(args[i]), 4, 50, 10000,
+                TimeUnit.HOURS.toMillis(1), schema);
+        try {
+            List<String> names = Arrays.asList(args).subList(i + 1, args.length);
+            Map<String, List<GazetteerPlace>> places = client.lookup(names);
+            for (String name : names)
+                System.out.println(name + "\t" + places.get(name));
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Columnar store of a corpus of labeled tokens.
+ *
+ * Tokens and labels are kept as ids into interned dictionaries, in two
+ * growable int columns with one entry per token; sentences are ranges of
+ * the columns, given by an offset array. Blank lines only end sentences
+ * and take no space. Memory grows with the corpus.
+ */
+public class Corpus {
+
+    /**
+     * Maps strings to dense ids and back.
+     */
+    public static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<String, Integer>();
+        private String[] words = new String[256];
+        private int size = 0;
+
+        /**
+         * @return the id of a string, adding it if it is new
+         */
+        public int lookup(String word) {
+            Integer id = ids.get(word);
+            if (id == null) {
+                id = size;
+                if (size == words.length)
+                    words = Arrays.copyOf(words, size * 2);
+                words[size++] = word;
+                ids.put(word, id);
+            }
+            return id;
+        }
+
+        /**
+         * @return the id of a string, or -1 if it is not in the dictionary
+         */
+        public int get(String word) {
+            Integer id = ids.get(word);
+            return id == null ? -1 : id;
+        }
+
+        public String word(int id) {
+            return words[id];
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A sentence of the corpus; reads the corpus columns directly.
+     */
+    public class Sentence {
+        private final int start;
+        private final int end;
+
+        private Sentence(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public int size() { return end - start; }
+        /** @return the corpus position of the first token */
+        public int start() { return start; }
+        public int end() { return end; }
+        public int tokenId(int i) { return tokens[start + i]; }
+        public int labelId(int i) { return labels[start + i]; }
+        public String token(int i) { return tokenDictionary.word(tokens[start + i]); }
+        public String label(int i) { return labelDictionary.word(labels[start + i]); }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                if (i > start)
+                    sb.append(' ');
+                sb.append(tokenDictionary.word(tokens[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Dictionary tokenDictionary = new Dictionary();
+    private final Dictionary labelDictionary = new Dictionary();
+
+    private int[] tokens = new int[1024];
+    private int[] labels = new int[1024];
+    private int size = 0;
+
+    // sentence s is tokens[sentenceStarts[s], sentenceStarts[s + 1])
+    private int[] sentenceStarts = new int[64];
+    private int numSentences = 0;
+
+    public Corpus() {
+    }
+
+    /**
+     * Reads lines of whitespace-separated fields: the first field of a line
+     * is the token and the last one its label (empty if the line has a single
+     * field). Blank lines end sentences; a last sentence without one is kept.
+     */
+    public static Corpus load(BufferedReader in) throws IOException {
+        Corpus corpus = new Corpus();
+        String line;
+        while ((line = in.readLine()) != null) {
+            int n = line.length();
+            int tokenStart = 0;
+            while (tokenStart < n && isSpace(line.charAt(tokenStart)))
+                tokenStart++;
+            if (tokenStart == n) {
+                corpus.endSentence();
+                continue;
+            }
+            int tokenEnd = tokenStart;
+            while (tokenEnd < n && !isSpace(line.charAt(tokenEnd)))
+                tokenEnd++;
+            int labelEnd = n;
+            while (isSpace(line.charAt(labelEnd - 1)))
+                labelEnd--;
+            int labelStart = labelEnd;
+            while (labelStart > tokenEnd && !isSpace(line.charAt(labelStart - 1)))
+                labelStart--;
+            corpus.add(line.substring(tokenStart, tokenEnd),
+                    labelStart > tokenEnd ? line.substring(labelStart, labelEnd) : "");
+        }
+        if (corpus.size > corpus.sentenceStarts[corpus.numSentences])
+            corpus.endSentence();
+        return corpus;
+    }
+
+    // the delimiters of StringTokenizer
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Appends a token to the current sentence.
+     */
+    public void add(String token, String label) {
+        if (size == tokens.length) {
+            tokens = Arrays.copyOf(tokens, size * 2);
+            labels = Arrays.copyOf(labels, size * 2);
+        }
+        tokens[size] = tokenDictionary.lookup(token);
+        labels[size] = labelDictionary.lookup(label);
+        size++;
+    }
+
+    /**
+     * Ends the current sentence, which may be empty.
+     */
+    public void endSentence() {
+        if (numSentences + 2 > sentenceStarts.length)
+            sentenceStarts = Arrays.copyOf(sentenceStarts, sentenceStarts.length * 2);
+        numSentences++;
+        sentenceStarts[numSentences] = size;
+    }
+
+    /**
+     * @return the number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    public int numSentences() {
+        return numSentences;
+    }
+
+    public Sentence sentence(int s) {
+        return new Sentence(sentenceStarts[s], sentenceStarts[s + 1]);
+    }
+
+    public int sentenceStart(int s) {
+        return sentenceStarts[s];
+    }
+
+    public int sentenceEnd(int s) {
+        return sentenceStarts[s + 1];
+    }
+
+    public int tokenId(int i) {
+        return tokens[i];
+    }
+
+    public int labelId(int i) {
+        return labels[i];
+    }
+
+    public String token(int i) {
+        return tokenDictionary.word(tokens[i]);
+    }
+
+    public String label(int i) {
+        return labelDictionary.word(labels[i]);
+    }
+
+    public Dictionary getTokenDictionary() {
+        return tokenDictionary;
+    }
+
+    public Dictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+}
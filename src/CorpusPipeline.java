@@ -0,0 +1,496 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.tagger.maxent.TaggerConfig;
+
+/**
+ * In-memory pipeline from token lines to tagger instances, replacing the
+ * NETPreProcessor and TrainData.posTag passes over intermediate files.
+ *
+ * The stages are pipes of one {@link SerialPipes}: sentence lines are split
+ * into {@link SentenceRows}, which get POS tag, extracted and gazetteer
+ * features, and then become the rows
+ * {@link Tagger.TaggerSentence2FeatureVectorSequence} turns into a
+ * FeatureVectorSequence. The whole chain is the pipe of the instance list,
+ * so a model trained on it pipes raw input the same way. The stages before
+ * the last only read shared state and run on a pool of threads; the last
+ * one grows the alphabets and runs on the reading thread, in input order.
+ * A bounded queue between the two keeps the pool at most a few sentences
+ * ahead of the reader.
+ */
+public class CorpusPipeline {
+
+    /**
+     * A sentence on its way through the pipeline.
+     */
+    public static class SentenceRows implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String[] tokens;
+        /** The labels, or null for unlabeled input. */
+        public final String[] labels;
+        private final List<List<String>> features;
+
+        public SentenceRows(String[] tokens, String[] labels) {
+            this.tokens = tokens;
+            this.labels = labels;
+            features = new ArrayList<List<String>>(tokens.length);
+            for (int i = 0; i < tokens.length; i++)
+                features.add(new ArrayList<String>(32));
+        }
+
+        public int size() {
+            return tokens.length;
+        }
+
+        public void add(int i, String feature) {
+            features.get(i).add(feature);
+        }
+
+        public List<String> features(int i) {
+            return features.get(i);
+        }
+    }
+
+    /**
+     * Splits the lines of a sentence into {@link SentenceRows}: the first
+     * field of a line is the token, the last the label if the input is
+     * labeled, and the fields between are features.
+     */
+    public static class Lines2SentenceRows extends Pipe {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean labeled;
+
+        public Lines2SentenceRows(boolean labeled) {
+            this.labeled = labeled;
+        }
+
+        public Instance pipe(Instance carrier) {
+            String[] lines = ((String)carrier.getData()).split("\n");
+            List<String[]> rows = new ArrayList<String[]>(lines.length);
+            for (String line : lines) {
+                StringTokenizer st = new StringTokenizer(line);
+                if (!st.hasMoreTokens())
+                    continue;
+                String[] fields = new String[st.countTokens()];
+                for (int f = 0; f < fields.length; f++)
+                    fields[f] = st.nextToken();
+                rows.add(fields);
+            }
+            String[] tokens = new String[rows.size()];
+            String[] labels = labeled ? new String[rows.size()] : null;
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = rows.get(i)[0];
+            SentenceRows sentence = new SentenceRows(tokens, labels);
+            for (int i = 0; i < tokens.length; i++) {
+                String[] fields = rows.get(i);
+                int last = labeled && fields.length > 1 ? fields.length - 1 : fields.length;
+                if (labeled)
+                    labels[i] = last < fields.length ? fields[last] : "";
+                for (int f = 1; f < last; f++)
+                    sentence.add(i, fields[f]);
+            }
+            carrier.setData(sentence);
+            return carrier;
+        }
+    }
+
+    /**
+     * Adds the POS tag of each token as a POS=tag feature. Each thread
+     * loads its own tagger; tags are looked up in a {@link PosTagCache}
+     * first if one is given. Only the file names are serialized.
+     */
+    public static class PosTagPipe extends Pipe {
+        private static final long serialVersionUID = 1L;
+
+        private final String model;
+        private final String cacheFile;
+        // written last by init(), so a thread that sees it also sees cache
+        private transient volatile ThreadLocal<MaxentTagger> taggers;
+        private transient PosTagCache cache;
+
+        /**
+         * @param model tagger model file, with its properties in the file
+         * of the same name ending in ".props"
+         * @param cacheFile POS tag cache file, or null not to cache
+         */
+        public PosTagPipe(String model, String cacheFile) {
+            this.model = model;
+            this.cacheFile = cacheFile;
+        }
+
+        private synchronized void init() throws IOException {
+            if (taggers != null)
+                return;
+            final Properties prop = new Properties();
+            InputStream in = new FileInputStream(model + ".props");
+            try {
+                prop.load(in);
+            } finally {
+                in.close();
+            }
+            if (cacheFile != null)
+                cache = new PosTagCache(new File(cacheFile), new File(model), 100000);
+            taggers = new ThreadLocal<MaxentTagger>() {
+                protected MaxentTagger initialValue() {
+                    try {
+                        return new MaxentTagger(model, new TaggerConfig(prop));
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Can't load tagger " + model, e);
+                    }
+                }
+            };
+        }
+
+        public Instance pipe(Instance carrier) {
+            SentenceRows sentence = (SentenceRows)carrier.getData();
+            try {
+                if (taggers == null)
+                    init();
+                String[] tags = cache != null ? cache.get(sentence.tokens) : null;
+                if (tags == null) {
+                    List<HasWord> words = new ArrayList<HasWord>(sentence.size());
+                    for (String token : sentence.tokens)
+                        words.add(new Word(token));
+                    List<TaggedWord> tagged = taggers.get().tagSentence(words);
+                    tags = new String[tagged.size()];
+                    for (int i = 0; i < tags.length; i++)
+                        tags[i] = tagged.get(i).tag();
+                    if (cache != null)
+                        cache.put(sentence.tokens, tags);
+                }
+                for (int i = 0; i < sentence.size(); i++)
+                    sentence.add(i, "POS=" + tags[i]);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't POS-tag with " + model, e);
+            }
+            return carrier;
+        }
+
+        public synchronized void close() throws IOException {
+            if (cache != null)
+                cache.close();
+            cache = null;
+        }
+    }
+
+    /**
+     * Adds the features of the standard {@link FeaturePipeline} extractors.
+     */
+    public static class FeatureExtractionPipe extends Pipe {
+        private static final long serialVersionUID = 1L;
+
+        private final int affix;
+        private final int window;
+        private transient volatile FeaturePipeline features;
+
+        public FeatureExtractionPipe(int affix, int window) {
+            this.affix = affix;
+            this.window = window;
+        }
+
+        private FeaturePipeline getFeatures() {
+            FeaturePipeline f = features;
+            if (f == null) {
+                synchronized (this) {
+                    f = features;
+                    if (f == null)
+                        features = f = new FeaturePipeline(FeaturePipeline.extractors(affix, window), false);
+                }
+            }
+            return f;
+        }
+
+        public Instance pipe(Instance carrier) {
+            SentenceRows sentence = (SentenceRows)carrier.getData();
+            FeaturePipeline.Features out = getFeatures().extract(sentence.tokens);
+            for (int i = 0; i < sentence.size(); i++)
+                for (int f = 0; f < out.count(i); f++)
+                    sentence.add(i, out.feature(i, f));
+            return carrier;
+        }
+    }
+
+    /**
+     * Adds the gazetteer features of {@link GazetteerMatcher}; the matcher is
+     * opened on first use.
+     */
+    public static class GazetteerPipe extends Pipe {
+        private static final long serialVersionUID = 1L;
+
+        private final String gazetteerFile;
+        private transient volatile GazetteerMatcher gazetteer;
+
+        public GazetteerPipe(String gazetteerFile) {
+            this.gazetteerFile = gazetteerFile;
+        }
+
+        private GazetteerMatcher getGazetteer() {
+            GazetteerMatcher g = gazetteer;
+            if (g == null) {
+                synchronized (this) {
+                    g = gazetteer;
+                    if (g == null) {
+                        try {
+                            gazetteer = g = GazetteerMatcher.open(new File(gazetteerFile));
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Can't load gazetteer " + gazetteerFile, e);
+                        }
+                    }
+                }
+            }
+            return g;
+        }
+
+        public Instance pipe(Instance carrier) {
+            SentenceRows sentence = (SentenceRows)carrier.getData();
+            String[][] features = getGazetteer().features(sentence.tokens);
+            for (int i = 0; i < sentence.size(); i++)
+                for (String feature : features[i])
+                    sentence.add(i, feature);
+            return carrier;
+        }
+    }
+
+    /**
+     * Turns {@link SentenceRows} into the rows of tokens
+     * {@link Tagger.TaggerSentence2FeatureVectorSequence} reads: the token,
+     * its features, then its label if there is one.
+     */
+    public static class SentenceRows2Tokens extends Pipe {
+        private static final long serialVersionUID = 1L;
+
+        public Instance pipe(Instance carrier) {
+            SentenceRows sentence = (SentenceRows)carrier.getData();
+            String[][] rows = new String[sentence.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                List<String> features = sentence.features(i);
+                String[] row = new String[1 + features.size() + (sentence.labels != null ? 1 : 0)];
+                row[0] = sentence.tokens[i];
+                for (int f = 0; f < features.size(); f++)
+                    row[1 + f] = features.get(f);
+                if (sentence.labels != null)
+                    row[row.length - 1] = sentence.labels[i];
+                rows[i] = row;
+            }
+            carrier.setData(rows);
+            return carrier;
+        }
+    }
+
+    private final Pipe[] stages;
+    private final SerialPipes pipe;
+
+    /**
+     * @param labeled whether input lines end with a label
+     * @param posModel POS tagger model file, or null not to tag
+     * @param posCache POS tag cache file, or null not to cache
+     * @param affix longest prefix and suffix feature, or 0
+     * @param window number of tokens on each side whose features are
+     * conjoined with their offset by the last stage, or 0
+     * @param gazetteer gazetteer or gazetteer index file, or null
+     */
+    public CorpusPipeline(boolean labeled, String posModel, String posCache,
+                          int affix, int window, String gazetteer) {
+        List<Pipe> pipes = new ArrayList<Pipe>();
+        pipes.add(new Lines2SentenceRows(labeled));
+        if (posModel != null)
+            pipes.add(new PosTagPipe(posModel, posCache));
+        // the window is conjoined from feature indices by the last stage instead
+        pipes.add(new FeatureExtractionPipe(affix, 0));
+        if (gazetteer != null)
+            pipes.add(new GazetteerPipe(gazetteer));
+        pipes.add(new SentenceRows2Tokens());
+        Tagger.TaggerSentence2FeatureVectorSequence last = new Tagger.TaggerSentence2FeatureVectorSequence();
+        last.setWindowSize(window);
+        last.setTargetProcessing(labeled);
+        pipes.add(last);
+        stages = pipes.toArray(new Pipe[pipes.size()]);
+        pipe = new SerialPipes(pipes);
+        pipe.setTargetProcessing(labeled);
+    }
+
+    /**
+     * @return the whole chain, for the instance lists and the model
+     */
+    public SerialPipes getPipe() {
+        return pipe;
+    }
+
+    /**
+     * @return the stage that turns rows into FeatureVectorSequences
+     */
+    public Tagger.TaggerSentence2FeatureVectorSequence getLastPipe() {
+        return (Tagger.TaggerSentence2FeatureVectorSequence)stages[stages.length - 1];
+    }
+
+    /**
+     * Reads blank-line separated sentences into a new instance list.
+     *
+     * @param threads threads for the stages before the last
+     */
+    public InstanceList read(Reader in, int threads) {
+        InstanceList list = new InstanceList(pipe);
+        Pipe[] parallel = new Pipe[stages.length - 1];
+        System.arraycopy(stages, 0, parallel, 0, parallel.length);
+        ParallelPipeIterator it = new ParallelPipeIterator(
+                new LineGroupIterator(in, Pattern.compile("^\\s*$"), true), parallel, threads, threads * 16);
+        Pipe last = getLastPipe();
+        try {
+            while (it.hasNext())
+                list.add(last.pipe(it.next()));
+        } finally {
+            it.close();
+        }
+        return list;
+    }
+
+    /**
+     * Closes the files the stages keep open.
+     */
+    public void close() throws IOException {
+        for (Pipe stage : stages)
+            if (stage instanceof PosTagPipe)
+                ((PosTagPipe)stage).close();
+    }
+
+    /**
+     * Runs pipes over the instances of a source on a pool of threads and
+     * returns the results in source order. A producer thread reads the
+     * source and queues a task per instance; the queue holds at most a
+     * given number of instances, so the producer waits when the consumer
+     * falls behind. A consumer that may stop before the end has to
+     * {@link #close()} the iterator.
+     */
+    public static class ParallelPipeIterator implements Iterator<Instance> {
+        private static final Future<Instance> END = new FutureTask<Instance>(new Callable<Instance>() {
+            public Instance call() {
+                return null;
+            }
+        });
+
+        private final BlockingQueue<Future<Instance>> queue;
+        private final ExecutorService pool;
+        private final Thread producer;
+        private volatile RuntimeException sourceError;
+        private Future<Instance> next;
+
+        public ParallelPipeIterator(final Iterator<Instance> source, final Pipe[] pipes,
+                                    int threads, int capacity) {
+            queue = new ArrayBlockingQueue<Future<Instance>>(Math.max(1, capacity));
+            ThreadFactory daemons = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "corpus-pipeline");
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            pool = Executors.newFixedThreadPool(Math.max(1, threads), daemons);
+            producer = daemons.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        while (source.hasNext()) {
+                            final Instance instance = source.next();
+                            queue.put(pool.submit(new Callable<Instance>() {
+                                public Instance call() {
+                                    Instance carrier = instance;
+                                    for (Pipe p : pipes)
+                                        carrier = p.pipe(carrier);
+                                    return carrier;
+                                }
+                            }));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        sourceError = e;
+                    }
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // the consumer is gone
+                    }
+                }
+            });
+            producer.start();
+        }
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while reading the corpus");
+                }
+                if (next == END)
+                    pool.shutdown();
+            }
+            if (next == END && sourceError != null)
+                throw sourceError;
+            return next != END;
+        }
+
+        public Instance next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Future<Instance> result = next;
+            next = null;
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading the corpus");
+            } catch (ExecutionException e) {
+                close();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the producer and the pool threads, dropping the instances
+         * not yet returned.
+         */
+        public void close() {
+            producer.interrupt();
+            pool.shutdownNow();
+        }
+    }
+}
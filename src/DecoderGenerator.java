@@ -0,0 +1,275 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Writer;
+import java.util.regex.Pattern;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+/**
+ * Writes and compiles a {@link GeneratedDecoder} specialized to the state
+ * graph of one trained model.
+ * <p>
+ * The generated Viterbi recurrence has one step method per state, which
+ * spells out every transition into the state with its source, index and
+ * position in the score array as constants. Splitting the recurrence by
+ * state keeps every method small enough for HotSpot to compile. The
+ * <code>--forbidden</code>/<code>--allowed</code> constraints the model was
+ * trained with are part of that graph: forbidden transitions simply do not
+ * appear. The first position is peeled so that states with an impossible
+ * initial weight drop out of it entirely.
+ * <p>
+ * Usage: DecoderGenerator model-file class-name output-dir [test-file [repeats]]
+ * <br>
+ * With a test file, the generated decoder is checked against and timed
+ * against the generic lattices.
+ */
+public class DecoderGenerator
+{
+    /**
+     * Most transitions into one state that are unrolled. Each state has its
+     * own step methods, so a step method holds at most this many
+     * transitions and stays well under the 8000 bytes of bytecode beyond
+     * which HotSpot will not JIT-compile a method (about 30 bytes per
+     * transition).
+     */
+    public static final int MAX_IN_DEGREE = 128;
+
+    /**
+     * Most states that are unrolled. The Viterbi method calls the step
+     * methods of every state twice and adds every final weight, which keeps
+     * it under 8000 bytes as well (about 50 bytes per state).
+     */
+    public static final int MAX_STATES = 128;
+
+    private DecoderGenerator()
+    {
+    }
+
+    private static String literal(double w)
+    {
+        if (w == Double.NEGATIVE_INFINITY)
+            return "Double.NEGATIVE_INFINITY";
+        if (w == Double.POSITIVE_INFINITY)
+            return "Double.POSITIVE_INFINITY";
+        if (Double.isNaN(w))
+            return "Double.NaN";
+        return Double.toString(w);
+    }
+
+    /**
+     * Appends the method computing the best incoming transition of state
+     * <code>d</code> at one position.
+     *
+     * @param first whether this is the first position, whose source scores
+     * are the initial weights
+     */
+    private static void appendStep(StringBuilder sb, DenseCRF m, int d, boolean first)
+    {
+        if (first)
+            sb.append("    private static void first").append(d).append("(double[] n, double[] tr, int[] bp)\n    {\n");
+        else
+            sb.append("    private static void step").append(d)
+                    .append("(double[] d, double[] n, double[] tr, int o, int[] bp, int b)\n    {\n");
+        String indent = "        ";
+        boolean any = false;
+        for (int t = m.destStart[d]; t < m.destStart[d + 1]; t++)
+        {
+            int s = m.transitionSource[t];
+            String score;
+            if (first)
+            {
+                if (m.initialWeight[s] == Double.NEGATIVE_INFINITY)
+                    continue;
+                score = literal(m.initialWeight[s]) + " + tr[" + t + "]";
+            }
+            else
+                score = "d[" + s + "] + tr[o + " + t + "]";
+            if (!any)
+            {
+                sb.append(indent).append("double best = ").append(score).append(", v;\n");
+                sb.append(indent).append("int arg = ").append(t).append(";\n");
+                any = true;
+            }
+            else
+            {
+                sb.append(indent).append("v = ").append(score).append("; if (v > best) { best = v; arg = ")
+                        .append(t).append("; }\n");
+            }
+        }
+        if (!any)
+        {
+            sb.append(indent).append("double best = Double.NEGATIVE_INFINITY;\n");
+            sb.append(indent).append("int arg = -1;\n");
+        }
+        sb.append(indent).append("n[").append(d).append("] = best;\n");
+        sb.append(indent).append("bp[").append(first ? "" : "b + ").append(d).append("] = arg;\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * Generates the source of a decoder class for a model.
+     *
+     * @param m a double-precision compact model
+     * @param className the simple name of the class, in the default package
+     * @return Java source code
+     */
+    public static String generate(DenseCRF m, String className)
+    {
+        if (m.numStates > MAX_STATES)
+            throw new IllegalArgumentException("Model has " + m.numStates
+                    + " states; at most " + MAX_STATES + " can be unrolled");
+        int S = m.numStates, T = m.numTransitions;
+        for (int d = 0; d < S; d++)
+            if (m.destStart[d + 1] - m.destStart[d] > MAX_IN_DEGREE)
+                throw new IllegalArgumentException("State " + m.getStateName(d) + " has "
+                        + (m.destStart[d + 1] - m.destStart[d]) + " incoming transitions; at most "
+                        + MAX_IN_DEGREE + " can be unrolled");
+        StringBuilder sb = new StringBuilder();
+        sb.append("/**\n * Viterbi decoder generated by DecoderGenerator for a model with ")
+                .append(S).append(" states and ").append(T).append(" transitions.\n * Do not edit.\n */\n");
+        sb.append("public final class ").append(className).append(" extends GeneratedDecoder\n{\n");
+        sb.append("    private double[] scores = new double[").append(S).append("], next = new double[")
+                .append(S).append("];\n\n");
+        sb.append("    public ").append(className).append("(DenseCRF model)\n    {\n");
+        sb.append("        super(model, ").append(GeneratedDecoder.structureHash(m)).append("L);\n    }\n\n");
+        sb.append("    protected int viterbi(double[] tr, int length, int[] bp)\n    {\n");
+        sb.append("        double[] d = scores, n = next, x;\n");
+        sb.append("        if (length == 0)\n        {\n");
+        for (int s = 0; s < S; s++)
+            sb.append("            d[").append(s).append("] = ").append(literal(m.initialWeight[s])).append(";\n");
+        sb.append("        }\n        else\n        {\n");
+        for (int s = 0; s < S; s++)
+            sb.append("            first").append(s).append("(d, tr, bp);\n");
+        sb.append("        }\n");
+        sb.append("        for (int ip = 1, o = ").append(T).append(", b = ").append(S)
+                .append("; ip < length; ip++, o += ").append(T).append(", b += ").append(S).append(")\n        {\n");
+        for (int s = 0; s < S; s++)
+            sb.append("            step").append(s).append("(d, n, tr, o, bp, b);\n");
+        sb.append("            x = d; d = n; n = x;\n");
+        sb.append("        }\n");
+        sb.append("        double best = Double.NEGATIVE_INFINITY, v;\n        int state = -1;\n");
+        for (int s = 0; s < S; s++)
+        {
+            if (m.finalWeight[s] == Double.NEGATIVE_INFINITY)
+                continue;
+            sb.append("        v = d[").append(s).append("] + ").append(literal(m.finalWeight[s]))
+                    .append("; if (v > best) { best = v; state = ").append(s).append("; }\n");
+        }
+        sb.append("        return state;\n    }\n\n");
+        for (int d = 0; d < S; d++)
+            appendStep(sb, m, d, true);
+        for (int d = 0; d < S; d++)
+            appendStep(sb, m, d, false);
+        sb.setLength(sb.length() - 1);
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Generates, compiles and loads a decoder for a model.
+     *
+     * @param m a double-precision compact model
+     * @param className the simple name of the class
+     * @param dir where the source and class files are written
+     */
+    public static GeneratedDecoder compile(DenseCRF m, String className, File dir) throws Exception
+    {
+        dir.mkdirs();
+        File source = new File(dir, className + ".java");
+        Writer w = new FileWriter(source);
+        w.write(generate(m, className));
+        w.close();
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new IllegalStateException("No system Java compiler; run on a JDK rather than a JRE");
+        int status = compiler.run(null, null, null,
+                "-classpath", System.getProperty("java.class.path"),
+                "-d", dir.getPath(), source.getPath());
+        if (status != 0)
+            throw new IOException("Compiling " + source + " failed with status " + status);
+        return GeneratedDecoder.load(dir, className, m);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.out.println("Usage:");
+            System.out.println("args[0] model file saved by Tagger");
+            System.out.println("args[1] name of the generated class");
+            System.out.println("args[2] output directory");
+            System.out.println("args[3] optional test file to check and time the decoder on");
+            System.out.println("args[4] number of timed repetitions (default 5)");
+            System.exit(-1);
+        }
+        ObjectInputStream s = new ObjectInputStream(new FileInputStream(args[0]));
+        CRF crf = (CRF)s.readObject();
+        s.close();
+
+        DenseCRF model = new DenseCRF(crf, false);
+        GeneratedDecoder decoder = compile(model, args[1], new File(args[2]));
+        System.out.println("Wrote " + new File(args[2], args[1] + ".class"));
+        if (args.length < 4)
+            return;
+
+        int repeats = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+        Pipe p = crf.getInputPipe();
+        p.setTargetProcessing(false);
+        InstanceList data = new InstanceList(p);
+        data.addThruPipe(new LineGroupIterator(new FileReader(args[3]), Pattern.compile("^\\s*$"), true));
+
+        DenseLattice lattice = DenseLattice.create(model);
+        int disagreements = 0;
+        for (Instance inst : data)
+        {
+            Sequence input = (Sequence)inst.getData();
+            Sequence expected = lattice.bestOutputSequence(input);
+            Sequence output = decoder.transduce(input);
+            for (int i = 0; i < expected.size(); i++)
+                if (!expected.get(i).equals(output.get(i)))
+                    disagreements++;
+        }
+        System.out.println("Label disagreements with the dense lattice: " + disagreements);
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            // the first pass warms up all three decoders
+            long generic = 0, dense = 0, generated = 0;
+            for (int r = 0; r < repeats; r++)
+            {
+                long start = System.nanoTime();
+                for (Instance inst : data)
+                    crf.transduce((Sequence)inst.getData());
+                generic += System.nanoTime() - start;
+                start = System.nanoTime();
+                for (Instance inst : data)
+                    lattice.bestOutputSequence((Sequence)inst.getData());
+                dense += System.nanoTime() - start;
+                start = System.nanoTime();
+                for (Instance inst : data)
+                    decoder.transduce((Sequence)inst.getData());
+                generated += System.nanoTime() - start;
+            }
+            if (pass == 1)
+            {
+                System.out.println("MALLET lattice: " + (generic / 1000000.0 / repeats) + " ms per pass");
+                System.out.println("Dense lattice: " + (dense / 1000000.0 / repeats) + " ms per pass");
+                System.out.println("Generated decoder: " + (generated / 1000000.0 / repeats) + " ms per pass");
+                System.out.println("Speedup over MALLET: " + ((double)generic / generated));
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.Serializable;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.SparseVector;
+
+/**
+ * A compact, read-only copy of a trained {@link CRF} laid out in flat
+ * primitive arrays for decoding.
+ * <p>
+ * Transitions are numbered and grouped by destination state, and the sparse
+ * transition weights are transposed so that every input feature points
+ * directly at the weight groups it contributes to. Scoring one input
+ * position is then a single pass over the locations of its
+ * {@link FeatureVector} followed by a pass over the transitions.
+ * <p>
+ * In single-precision mode the feature and default weights are stored as
+ * <code>float</code>, which halves the size of the model and the memory
+ * traffic of the scoring loop; {@link DenseLattice} then keeps its lattice
+ * in <code>float</code> as well.
+ */
+public class DenseCRF implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    final boolean singlePrecision;
+
+    final int numStates;
+    final int numTransitions;
+    final int numWeights;
+    final int numFeatures;
+
+    final String[] stateNames;
+    final String[] labelNames;
+
+    // transition t goes from transitionSource[t] to transitionDest[t] emitting
+    // labelNames[transitionLabel[t]]; transitions into state d are the range
+    // destStart[d] .. destStart[d+1]-1
+    final int[] transitionSource;
+    final int[] transitionDest;
+    final int[] transitionLabel;
+    final int[] destStart;
+
+    // transitions out of state s are sourceOrder[sourceStart[s] .. sourceStart[s+1]-1]
+    final int[] sourceStart;
+    final int[] sourceOrder;
+
+    // weight groups summed into the score of transition t
+    final int[] weightStart;
+    final int[] weightGroup;
+
+    // feature f adds featureWeight[k] to group featureGroup[k],
+    // for k in featureStart[f] .. featureStart[f+1]-1
+    final int[] featureStart;
+    final int[] featureGroup;
+    final double[] featureWeight;
+    final float[] featureWeightF;
+
+    final double[] defaultWeight;
+    final float[] defaultWeightF;
+
+    final double[] initialWeight;
+    final double[] finalWeight;
+
+    /**
+     * Copies the structure and parameters of a trained CRF.
+     *
+     * @param crf the trained model
+     * @param singlePrecision whether to store the weights as <code>float</code>
+     */
+    public DenseCRF(CRF crf, boolean singlePrecision)
+    {
+        this.singlePrecision = singlePrecision;
+        CRF.Factors params = crf.getParameters();
+        Alphabet weightAlphabet = params.weightAlphabet;
+
+        numStates = crf.numStates();
+        stateNames = new String[numStates];
+        initialWeight = new double[numStates];
+        finalWeight = new double[numStates];
+
+        int count = 0;
+        for (int s = 0; s < numStates; s++)
+        {
+            CRF.State state = (CRF.State)crf.getState(s);
+            stateNames[s] = state.getName();
+            initialWeight[s] = state.getInitialWeight();
+            finalWeight[s] = state.getFinalWeight();
+            count += state.numDestinations();
+        }
+        numTransitions = count;
+
+        // bucket the transitions by destination state
+        destStart = new int[numStates + 1];
+        for (int s = 0; s < numStates; s++)
+        {
+            CRF.State state = (CRF.State)crf.getState(s);
+            for (int j = 0; j < state.numDestinations(); j++)
+                destStart[state.getDestinationState(j).getIndex() + 1]++;
+        }
+        for (int d = 0; d < numStates; d++)
+            destStart[d + 1] += destStart[d];
+
+        transitionSource = new int[numTransitions];
+        transitionDest = new int[numTransitions];
+        transitionLabel = new int[numTransitions];
+        String[][] transitionWeights = new String[numTransitions][];
+        Alphabet labels = new Alphabet();
+        int[] fill = destStart.clone();
+        for (int s = 0; s < numStates; s++)
+        {
+            CRF.State state = (CRF.State)crf.getState(s);
+            for (int j = 0; j < state.numDestinations(); j++)
+            {
+                int d = state.getDestinationState(j).getIndex();
+                int t = fill[d]++;
+                transitionSource[t] = s;
+                transitionDest[t] = d;
+                transitionLabel[t] = labels.lookupIndex(state.getLabelName(j));
+                transitionWeights[t] = state.getWeightNames(j);
+            }
+        }
+        labelNames = new String[labels.size()];
+        for (int i = 0; i < labelNames.length; i++)
+            labelNames[i] = (String)labels.lookupObject(i);
+
+        sourceStart = new int[numStates + 1];
+        for (int t = 0; t < numTransitions; t++)
+            sourceStart[transitionSource[t] + 1]++;
+        for (int s = 0; s < numStates; s++)
+            sourceStart[s + 1] += sourceStart[s];
+        sourceOrder = new int[numTransitions];
+        fill = sourceStart.clone();
+        for (int t = 0; t < numTransitions; t++)
+            sourceOrder[fill[transitionSource[t]]++] = t;
+
+        weightStart = new int[numTransitions + 1];
+        for (int t = 0; t < numTransitions; t++)
+            weightStart[t + 1] = weightStart[t] + transitionWeights[t].length;
+        weightGroup = new int[weightStart[numTransitions]];
+        for (int t = 0; t < numTransitions; t++)
+            for (int i = 0; i < transitionWeights[t].length; i++)
+                weightGroup[weightStart[t] + i] = weightAlphabet.lookupIndex(transitionWeights[t][i], false);
+
+        // transpose the per-group sparse weights into per-feature rows
+        SparseVector[] weights = params.weights;
+        numWeights = weights.length;
+        int maxFeature = -1;
+        int nonZeros = 0;
+        for (int w = 0; w < numWeights; w++)
+        {
+            int n = weights[w].numLocations();
+            nonZeros += n;
+            for (int l = 0; l < n; l++)
+                maxFeature = Math.max(maxFeature, weights[w].indexAtLocation(l));
+        }
+        numFeatures = maxFeature + 1;
+        featureStart = new int[numFeatures + 1];
+        for (int w = 0; w < numWeights; w++)
+            for (int l = 0; l < weights[w].numLocations(); l++)
+                featureStart[weights[w].indexAtLocation(l) + 1]++;
+        for (int f = 0; f < numFeatures; f++)
+            featureStart[f + 1] += featureStart[f];
+
+        featureGroup = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        fill = featureStart.clone();
+        for (int w = 0; w < numWeights; w++)
+        {
+            for (int l = 0; l < weights[w].numLocations(); l++)
+            {
+                int k = fill[weights[w].indexAtLocation(l)]++;
+                featureGroup[k] = w;
+                values[k] = weights[w].valueAtLocation(l);
+            }
+        }
+
+        if (singlePrecision)
+        {
+            featureWeight = null;
+            defaultWeight = null;
+            featureWeightF = toFloat(values);
+            defaultWeightF = toFloat(params.defaultWeights);
+        }
+        else
+        {
+            featureWeight = values;
+            defaultWeight = params.defaultWeights.clone();
+            featureWeightF = null;
+            defaultWeightF = null;
+        }
+    }
+
+    private static float[] toFloat(double[] values)
+    {
+        float[] ret = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            ret[i] = (float)values[i];
+        return ret;
+    }
+
+    public boolean isSinglePrecision()
+    {
+        return singlePrecision;
+    }
+
+    public int numStates()
+    {
+        return numStates;
+    }
+
+    public int numTransitions()
+    {
+        return numTransitions;
+    }
+
+    public String getStateName(int state)
+    {
+        return stateNames[state];
+    }
+
+    public String getLabelName(int transition)
+    {
+        return labelNames[transitionLabel[transition]];
+    }
+
+    /**
+     * Approximate number of bytes held by the parameter and index arrays.
+     */
+    public long sizeInBytes()
+    {
+        int valueBytes = singlePrecision ? 4 : 8;
+        long bytes = 4L * (transitionSource.length + transitionDest.length + transitionLabel.length
+                + destStart.length + sourceStart.length + sourceOrder.length
+                + weightStart.length + weightGroup.length + featureStart.length + featureGroup.length);
+        bytes += (long)valueBytes * (featureGroup.length + numWeights);
+        bytes += 8L * (initialWeight.length + finalWeight.length);
+        return bytes;
+    }
+
+    /**
+     * Scores every transition at one input position.
+     *
+     * @param fv the features of the input position
+     * @param dot scratch space for the per-group dot products, at least
+     * <code>numWeights</code> long
+     * @param out receives the transition scores
+     * @param offset where the scores of transition 0 go in <code>out</code>
+     */
+    void score(FeatureVector fv, double[] dot, double[] out, int offset)
+    {
+        System.arraycopy(defaultWeight, 0, dot, 0, numWeights);
+        int n = fv.numLocations();
+        for (int l = 0; l < n; l++)
+        {
+            int f = fv.indexAtLocation(l);
+            // features never seen with a non-zero weight contribute nothing
+            if (f >= numFeatures)
+                continue;
+            double v = fv.valueAtLocation(l);
+            for (int k = featureStart[f]; k < featureStart[f + 1]; k++)
+                dot[featureGroup[k]] += v * featureWeight[k];
+        }
+        for (int t = 0; t < numTransitions; t++)
+        {
+            double w = 0.0;
+            for (int k = weightStart[t]; k < weightStart[t + 1]; k++)
+                w += dot[weightGroup[k]];
+            out[offset + t] = w;
+        }
+    }
+
+    /**
+     * Single-precision version of {@link #score(FeatureVector, double[], double[], int)}.
+     */
+    void score(FeatureVector fv, float[] dot, float[] out, int offset)
+    {
+        System.arraycopy(defaultWeightF, 0, dot, 0, numWeights);
+        int n = fv.numLocations();
+        for (int l = 0; l < n; l++)
+        {
+            int f = fv.indexAtLocation(l);
+            if (f >= numFeatures)
+                continue;
+            float v = (float)fv.valueAtLocation(l);
+            for (int k = featureStart[f]; k < featureStart[f + 1]; k++)
+                dot[featureGroup[k]] += v * featureWeightF[k];
+        }
+        for (int t = 0; t < numTransitions; t++)
+        {
+            float w = 0.0f;
+            for (int k = weightStart[t]; k < weightStart[t + 1]; k++)
+                w += dot[weightGroup[k]];
+            out[offset + t] = w;
+        }
+    }
+
+    /**
+     * Finds the highest-scoring output sequence. Allocates a fresh lattice;
+     * callers decoding many sequences on one thread should keep their own
+     * {@link DenseLattice} instead.
+     *
+     * @param input a {@link cc.mallet.types.FeatureVectorSequence}
+     * @return the sequence of output labels
+     */
+    public Sequence transduce(Sequence input)
+    {
+        return DenseLattice.create(this).bestOutputSequence(input);
+    }
+}
@@ -0,0 +1,436 @@
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+
+/**
+ * Viterbi and forward-backward recurrences over a {@link DenseCRF}.
+ * <p>
+ * A lattice owns its buffers and grows them to the longest input it has
+ * seen, so one instance can decode any number of sequences without
+ * allocating. Instances are not thread-safe; use one per thread.
+ * <p>
+ * Node scores follow MALLET's conventions: position 0 holds the initial
+ * weights, position <em>i</em>+1 is reached through the transitions scored
+ * on input position <em>i</em>, and the final weights are added at the end.
+ * Log-sums are taken relative to the largest incoming score so that they
+ * stay finite in single precision.
+ * <p>
+ * The Viterbi labels can differ from those of MALLET's own lattice on a few
+ * sequences: <code>MaxLatticeDefault</code> sometimes settles on a lighter
+ * path near the ends of a sequence, while the path found here is never
+ * lighter. {@link LatticeCheck} compares the weights of both paths.
+ */
+public class DenseLattice
+{
+    protected final DenseCRF model;
+    protected final boolean single;
+
+    protected int length = 0;
+
+    protected double[] dot, trans, alpha, beta;
+    protected float[] dotF, transF, alphaF, betaF;
+    protected int[] backPointer = new int[0];
+
+    public DenseLattice(DenseCRF model)
+    {
+        this.model = model;
+        this.single = model.singlePrecision;
+        if (single)
+        {
+            dotF = new float[model.numWeights];
+            transF = alphaF = betaF = new float[0];
+        }
+        else
+        {
+            dot = new double[model.numWeights];
+            trans = alpha = beta = new double[0];
+        }
+    }
+
+    /**
+     * Creates a lattice using the named kernel.
+     *
+     * @param model the compact model
+     * @param kernel <code>scalar</code> for the transition-list recurrences,
+     * <code>blocked</code> for {@link BlockedLattice}
+     */
+    public static DenseLattice create(DenseCRF model, String kernel)
+    {
+        if (kernel.equals("scalar"))
+            return new DenseLattice(model);
+        else if (kernel.equals("blocked"))
+            return new BlockedLattice(model);
+        throw new IllegalArgumentException("Unknown lattice kernel: " + kernel);
+    }
+
+    /**
+     * Creates a lattice using the kernel named by the
+     * <code>swtagger.lattice</code> system property, <code>scalar</code> by default.
+     */
+    public static DenseLattice create(DenseCRF model)
+    {
+        return create(model, System.getProperty("swtagger.lattice", "scalar"));
+    }
+
+    public DenseCRF getModel()
+    {
+        return model;
+    }
+
+    /**
+     * @return the length of the input currently in the lattice
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    /**
+     * Scores all transitions of an input sequence. Must be called before
+     * any of the recurrences.
+     *
+     * @param input a sequence of {@link FeatureVector}s
+     */
+    public void setInput(Sequence input)
+    {
+        length = input.size();
+        int T = model.numTransitions;
+        int nodes = (length + 1) * model.numStates;
+        if (backPointer.length < length * model.numStates)
+            backPointer = new int[length * model.numStates];
+        if (single)
+        {
+            if (transF.length < length * T)
+                transF = new float[length * T];
+            if (alphaF.length < nodes)
+            {
+                alphaF = new float[nodes];
+                betaF = new float[nodes];
+            }
+            for (int ip = 0; ip < length; ip++)
+                model.score((FeatureVector)input.get(ip), dotF, transF, ip * T);
+        }
+        else
+        {
+            if (trans.length < length * T)
+                trans = new double[length * T];
+            if (alpha.length < nodes)
+            {
+                alpha = new double[nodes];
+                beta = new double[nodes];
+            }
+            for (int ip = 0; ip < length; ip++)
+                model.score((FeatureVector)input.get(ip), dot, trans, ip * T);
+        }
+    }
+
+    /**
+     * Finds the best path through the lattice.
+     *
+     * @param path receives, for each input position, the transition taken
+     * by the best path; must be at least {@link #length()} long
+     * @return the weight of the best path
+     */
+    public double viterbi(int[] path)
+    {
+        int S = model.numStates;
+        int best = -1;
+        double bestWeight = Transducer.IMPOSSIBLE_WEIGHT;
+        if (single)
+        {
+            viterbiForward(alphaF, transF);
+            for (int s = 0; s < S; s++)
+            {
+                double w = alphaF[length * S + s] + model.finalWeight[s];
+                if (w > bestWeight)
+                {
+                    bestWeight = w;
+                    best = s;
+                }
+            }
+        }
+        else
+        {
+            viterbiForward(alpha, trans);
+            for (int s = 0; s < S; s++)
+            {
+                double w = alpha[length * S + s] + model.finalWeight[s];
+                if (w > bestWeight)
+                {
+                    bestWeight = w;
+                    best = s;
+                }
+            }
+        }
+        if (best < 0)
+            throw new IllegalStateException("No path through the lattice");
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int t = backPointer[ip * S + best];
+            path[ip] = t;
+            best = model.transitionSource[t];
+        }
+        return bestWeight;
+    }
+
+    protected void viterbiForward(double[] delta, double[] trans)
+    {
+        DenseCRF m = model;
+        int S = m.numStates, T = m.numTransitions;
+        for (int s = 0; s < S; s++)
+            delta[s] = m.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, tr = ip * T;
+            for (int d = 0; d < S; d++)
+            {
+                double best = Transducer.IMPOSSIBLE_WEIGHT;
+                int arg = -1;
+                for (int t = m.destStart[d]; t < m.destStart[d + 1]; t++)
+                {
+                    double v = delta[in + m.transitionSource[t]] + trans[tr + t];
+                    if (v > best)
+                    {
+                        best = v;
+                        arg = t;
+                    }
+                }
+                delta[out + d] = best;
+                backPointer[in + d] = arg;
+            }
+        }
+    }
+
+    protected void viterbiForward(float[] delta, float[] trans)
+    {
+        DenseCRF m = model;
+        int S = m.numStates, T = m.numTransitions;
+        for (int s = 0; s < S; s++)
+            delta[s] = (float)m.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, tr = ip * T;
+            for (int d = 0; d < S; d++)
+            {
+                float best = Float.NEGATIVE_INFINITY;
+                int arg = -1;
+                for (int t = m.destStart[d]; t < m.destStart[d + 1]; t++)
+                {
+                    float v = delta[in + m.transitionSource[t]] + trans[tr + t];
+                    if (v > best)
+                    {
+                        best = v;
+                        arg = t;
+                    }
+                }
+                delta[out + d] = best;
+                backPointer[in + d] = arg;
+            }
+        }
+    }
+
+    /**
+     * Runs the forward recurrence.
+     *
+     * @return the log partition function of the current input
+     */
+    public double forward()
+    {
+        int S = model.numStates;
+        double max = Transducer.IMPOSSIBLE_WEIGHT;
+        if (single)
+            forward(alphaF, transF);
+        else
+            forward(alpha, trans);
+        for (int s = 0; s < S; s++)
+            max = Math.max(max, alphaAt(length, s) + model.finalWeight[s]);
+        if (max == Transducer.IMPOSSIBLE_WEIGHT)
+            return max;
+        double sum = 0.0;
+        for (int s = 0; s < S; s++)
+            sum += Math.exp(alphaAt(length, s) + model.finalWeight[s] - max);
+        return max + Math.log(sum);
+    }
+
+    protected void forward(double[] alpha, double[] trans)
+    {
+        DenseCRF m = model;
+        int S = m.numStates, T = m.numTransitions;
+        for (int s = 0; s < S; s++)
+            alpha[s] = m.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, tr = ip * T;
+            for (int d = 0; d < S; d++)
+            {
+                int lo = m.destStart[d], hi = m.destStart[d + 1];
+                double max = Transducer.IMPOSSIBLE_WEIGHT;
+                for (int t = lo; t < hi; t++)
+                    max = Math.max(max, alpha[in + m.transitionSource[t]] + trans[tr + t]);
+                if (max == Transducer.IMPOSSIBLE_WEIGHT)
+                {
+                    alpha[out + d] = max;
+                    continue;
+                }
+                double sum = 0.0;
+                for (int t = lo; t < hi; t++)
+                    sum += Math.exp(alpha[in + m.transitionSource[t]] + trans[tr + t] - max);
+                alpha[out + d] = max + Math.log(sum);
+            }
+        }
+    }
+
+    protected void forward(float[] alpha, float[] trans)
+    {
+        DenseCRF m = model;
+        int S = m.numStates, T = m.numTransitions;
+        for (int s = 0; s < S; s++)
+            alpha[s] = (float)m.initialWeight[s];
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, tr = ip * T;
+            for (int d = 0; d < S; d++)
+            {
+                int lo = m.destStart[d], hi = m.destStart[d + 1];
+                float max = Float.NEGATIVE_INFINITY;
+                for (int t = lo; t < hi; t++)
+                    max = Math.max(max, alpha[in + m.transitionSource[t]] + trans[tr + t]);
+                if (max == Float.NEGATIVE_INFINITY)
+                {
+                    alpha[out + d] = max;
+                    continue;
+                }
+                // accumulate in double, store in float
+                double sum = 0.0;
+                for (int t = lo; t < hi; t++)
+                    sum += Math.exp(alpha[in + m.transitionSource[t]] + trans[tr + t] - max);
+                alpha[out + d] = (float)(max + Math.log(sum));
+            }
+        }
+    }
+
+    /**
+     * Runs the backward recurrence.
+     */
+    public void backward()
+    {
+        if (single)
+            backward(betaF, transF);
+        else
+            backward(beta, trans);
+    }
+
+    protected void backward(double[] beta, double[] trans)
+    {
+        DenseCRF m = model;
+        int S = m.numStates, T = m.numTransitions;
+        for (int s = 0; s < S; s++)
+            beta[length * S + s] = m.finalWeight[s];
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int here = ip * S, next = here + S, tr = ip * T;
+            for (int s = 0; s < S; s++)
+            {
+                int lo = m.sourceStart[s], hi = m.sourceStart[s + 1];
+                double max = Transducer.IMPOSSIBLE_WEIGHT;
+                for (int k = lo; k < hi; k++)
+                {
+                    int t = m.sourceOrder[k];
+                    max = Math.max(max, trans[tr + t] + beta[next + m.transitionDest[t]]);
+                }
+                if (max == Transducer.IMPOSSIBLE_WEIGHT)
+                {
+                    beta[here + s] = max;
+                    continue;
+                }
+                double sum = 0.0;
+                for (int k = lo; k < hi; k++)
+                {
+                    int t = m.sourceOrder[k];
+                    sum += Math.exp(trans[tr + t] + beta[next + m.transitionDest[t]] - max);
+                }
+                beta[here + s] = max + Math.log(sum);
+            }
+        }
+    }
+
+    protected void backward(float[] beta, float[] trans)
+    {
+        DenseCRF m = model;
+        int S = m.numStates, T = m.numTransitions;
+        for (int s = 0; s < S; s++)
+            beta[length * S + s] = (float)m.finalWeight[s];
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int here = ip * S, next = here + S, tr = ip * T;
+            for (int s = 0; s < S; s++)
+            {
+                int lo = m.sourceStart[s], hi = m.sourceStart[s + 1];
+                float max = Float.NEGATIVE_INFINITY;
+                for (int k = lo; k < hi; k++)
+                {
+                    int t = m.sourceOrder[k];
+                    max = Math.max(max, trans[tr + t] + beta[next + m.transitionDest[t]]);
+                }
+                if (max == Float.NEGATIVE_INFINITY)
+                {
+                    beta[here + s] = max;
+                    continue;
+                }
+                double sum = 0.0;
+                for (int k = lo; k < hi; k++)
+                {
+                    int t = m.sourceOrder[k];
+                    sum += Math.exp(trans[tr + t] + beta[next + m.transitionDest[t]] - max);
+                }
+                beta[here + s] = (float)(max + Math.log(sum));
+            }
+        }
+    }
+
+    /**
+     * @return the forward score of a node, valid after {@link #forward()}
+     */
+    public double alphaAt(int position, int state)
+    {
+        int i = position * model.numStates + state;
+        return single ? alphaF[i] : alpha[i];
+    }
+
+    /**
+     * @return the backward score of a node, valid after {@link #backward()}
+     */
+    public double betaAt(int position, int state)
+    {
+        int i = position * model.numStates + state;
+        return single ? betaF[i] : beta[i];
+    }
+
+    /**
+     * @return the score of a transition at an input position, valid after
+     * {@link #setInput(Sequence)}
+     */
+    public double transitionAt(int position, int transition)
+    {
+        int i = position * model.numTransitions + transition;
+        return single ? transF[i] : trans[i];
+    }
+
+    /**
+     * Decodes one input sequence.
+     *
+     * @param input a sequence of {@link FeatureVector}s
+     * @return the labels of the best path
+     */
+    public Sequence bestOutputSequence(Sequence input)
+    {
+        setInput(input);
+        int[] path = new int[length];
+        viterbi(path);
+        String[] labels = new String[length];
+        for (int ip = 0; ip < length; ip++)
+            labels[ip] = model.getLabelName(path[ip]);
+        return new ArraySequence<String>(labels);
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.fst.TransducerEvaluator;
+import cc.mallet.fst.TransducerTrainer;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.util.MalletLogger;
+
+/**
+ * Entity-level evaluation of a transducer on labeled instance lists, without
+ * writing the output to disk.
+ * <p>
+ * Every instance is decoded, and its predicted and gold label sequences are
+ * turned into entities with the same BIO rules and the same treatment of a
+ * leading "the" as {@link Scorer_Independent}, so the precision, recall and
+ * F1 reported here match what the scorer reports on the written output.
+ * The tokens of an instance are read from its source, which
+ * {@link Tagger.TaggerSentence2FeatureVectorSequence} sets to the first
+ * column of each line when its tokens are saved. Instances are decoded in parallel; decoding only
+ * reads the model, so this is safe between training iterations.
+ */
+public class EntityEvaluator extends TransducerEvaluator
+{
+    private static Logger logger =
+            MalletLogger.getLogger(EntityEvaluator.class.getName());
+
+    private final int threads;
+    private final Map<String, Scorer_Independent.Scores> scores =
+            new HashMap<String, Scorer_Independent.Scores>();
+
+    /**
+     * @param instanceLists labeled instance lists to evaluate on
+     * @param descriptions names of the lists in the log
+     * @param threads number of decoding threads
+     */
+    public EntityEvaluator(InstanceList[] instanceLists, String[] descriptions, int threads)
+    {
+        super(instanceLists, descriptions);
+        this.threads = Math.max(1, threads);
+    }
+
+    public EntityEvaluator(InstanceList instanceList, String description)
+    {
+        this(new InstanceList[] { instanceList }, new String[] { description }, 1);
+    }
+
+    public void evaluateInstanceList(TransducerTrainer tt, InstanceList instances, String description)
+    {
+        Scorer_Independent.Scores s = score(tt.getTransducer(), instances);
+        scores.put(description, s);
+
+        double precision = s.num_correct / s.num_ans;
+        double recall = s.num_correct / s.num_gold;
+        logger.info(description + " iteration=" + tt.getIteration()
+                + " entity precision=" + precision + " recall=" + recall
+                + " f1=" + 2 * precision * recall / (precision + recall));
+        Set<String> types = new TreeSet<String>(s.tab_num_gold.keySet());
+        types.addAll(s.tab_num_ans.keySet());
+        for (String type : types)
+        {
+            double correct = count(s.tab_num_correct, type);
+            precision = correct / count(s.tab_num_ans, type);
+            recall = correct / count(s.tab_num_gold, type);
+            logger.info(description + " " + type + " precision=" + precision + " recall=" + recall
+                    + " f1=" + 2 * precision * recall / (precision + recall));
+        }
+    }
+
+    /**
+     * @return the scores of the last evaluation of the named list, or
+     * <code>null</code> if it has not been evaluated
+     */
+    public Scorer_Independent.Scores getScores(String description)
+    {
+        return scores.get(description);
+    }
+
+    /**
+     * Decodes labeled instances and scores the output at the entity level.
+     *
+     * @param model the transducer to decode with
+     * @param instances instances with gold label sequences as targets
+     * @return the counts over all instances, as one document
+     */
+    public Scorer_Independent.Scores score(final Transducer model, final InstanceList instances)
+    {
+        Scorer_Independent.Scores total = new Scorer_Independent.Scores();
+        int n = instances.size();
+        if (threads == 1 || n < 2)
+        {
+            score(model, instances, 0, n, total);
+        }
+        else
+        {
+            // a few chunks per thread even out long and short sentences
+            int chunk = Math.max(1, (n + threads * 4 - 1) / (threads * 4));
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try
+            {
+                List<Future<Scorer_Independent.Scores>> results =
+                        new ArrayList<Future<Scorer_Independent.Scores>>();
+                for (int start = 0; start < n; start += chunk)
+                {
+                    final int from = start, to = Math.min(n, start + chunk);
+                    results.add(pool.submit(new Callable<Scorer_Independent.Scores>()
+                    {
+                        public Scorer_Independent.Scores call()
+                        {
+                            Scorer_Independent.Scores s = new Scorer_Independent.Scores();
+                            score(model, instances, from, to, s);
+                            return s;
+                        }
+                    }));
+                }
+                for (Future<Scorer_Independent.Scores> result : results)
+                    total.merge(Scorer_Independent.getResult(result));
+            }
+            catch (IOException e)
+            {
+                // only an interruption, as scoring reads no files
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
+        }
+        total.num_docs = 1;
+        return total;
+    }
+
+    private static void score(Transducer model, InstanceList instances, int from, int to,
+                              Scorer_Independent.Scores scores)
+    {
+        Scorer_Independent.SentenceBuilder builder = new Scorer_Independent.SentenceBuilder();
+        // label -> entity type id, so the shared type table is only locked for new labels
+        Map<String, Integer> typeIds = new HashMap<String, Integer>();
+        for (int i = from; i < to; i++)
+        {
+            Instance inst = instances.get(i);
+            if (!(inst.getSource() instanceof String[]))
+                throw new IllegalArgumentException("Instance " + inst.getName()
+                        + " has no tokens as its source; pipe it with setSaveTokens(true). Got "
+                        + inst.getSource());
+            String[] tokens = (String[])inst.getSource();
+            Sequence gold = (Sequence)inst.getTarget();
+            Sequence output = model.transduce((Sequence)inst.getData());
+            Scorer_Independent.scoreSentence(getEntities(tokens, gold, builder, typeIds),
+                    getEntities(tokens, output, builder, typeIds), scores);
+        }
+    }
+
+    private static List<Scorer_Independent.NamedEntity> getEntities(String[] tokens, Sequence labels,
+                                                                    Scorer_Independent.SentenceBuilder builder,
+                                                                    Map<String, Integer> typeIds)
+    {
+        if (labels.size() != tokens.length)
+            throw new IllegalArgumentException("Got " + labels.size() + " labels for " + tokens.length + " tokens");
+        for (int i = 0; i < tokens.length; i++)
+        {
+            String label = labels.get(i).toString();
+            Integer typeId = typeIds.get(label);
+            if (typeId == null)
+            {
+                typeId = Scorer_Independent.getLabelTypeId(label);
+                typeIds.put(label, typeId);
+            }
+            builder.add(label, typeId, tokens[i]);
+        }
+        return builder.finish();
+    }
+
+    private static double count(Map<String, Double> tab, String type)
+    {
+        Double num = tab.get(type);
+        return num == null ? 0.0 : num;
+    }
+}
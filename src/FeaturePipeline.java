@@ -0,0 +1,463 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feature extraction stage: adds the features of a list of {@link Extractor}s
+ * to every token of a file of token lines.
+ *
+ * Input lines hold whitespace-separated fields, the token first and, if the
+ * input is labeled, the label last; blank lines end sentences. Each output
+ * line holds the fields of the input line but the label, then the extracted
+ * features, then the label, which is the format
+ * {@link Tagger.TaggerSentence2FeatureVectorSequence} reads. Extractors
+ * append to a {@link Features} buffer that each thread reuses from sentence
+ * to sentence. Batches of sentences are processed on a pool of threads and
+ * written in input order. Progress is kept in counters instead of being
+ * printed.
+ */
+public class FeaturePipeline {
+
+    /**
+     * Adds features of one token of a sentence.
+     */
+    public interface Extractor {
+        /**
+         * @param tokens the tokens of the sentence
+         * @param i the token to add features to
+         */
+        void extract(String[] tokens, int i, Features out);
+    }
+
+    /**
+     * Features of the tokens of a sentence, kept as character ranges of one
+     * growable buffer per token so that features can be composed without
+     * creating strings.
+     */
+    public static final class Features {
+        private StringBuilder[] rows = new StringBuilder[0];
+        // feature f of token i ends at ends[i][f] in rows[i]
+        private int[][] ends = new int[0][];
+        private int[] counts = new int[0];
+        private int size = 0;
+
+        /**
+         * Empties the buffer for a sentence of n tokens.
+         */
+        public void reset(int n) {
+            if (n > rows.length) {
+                int old = rows.length;
+                rows = Arrays.copyOf(rows, n);
+                ends = Arrays.copyOf(ends, n);
+                counts = Arrays.copyOf(counts, n);
+                for (int i = old; i < n; i++) {
+                    rows[i] = new StringBuilder(64);
+                    ends[i] = new int[16];
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                rows[i].setLength(0);
+                counts[i] = 0;
+            }
+            size = n;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Starts a feature of token i; the caller appends its name to the
+         * returned buffer and then calls {@link #end}.
+         */
+        public StringBuilder begin(int i) {
+            return rows[i];
+        }
+
+        public void end(int i) {
+            if (counts[i] == ends[i].length)
+                ends[i] = Arrays.copyOf(ends[i], counts[i] * 2);
+            ends[i][counts[i]++] = rows[i].length();
+        }
+
+        public void add(int i, String feature) {
+            begin(i).append(feature);
+            end(i);
+        }
+
+        /** @return the number of features of token i */
+        public int count(int i) {
+            return counts[i];
+        }
+
+        public String feature(int i, int f) {
+            return rows[i].substring(f == 0 ? 0 : ends[i][f - 1], ends[i][f]);
+        }
+
+        /**
+         * Appends the features of token i, each after a space.
+         */
+        public void appendTo(int i, StringBuilder sb) {
+            int start = 0;
+            for (int f = 0; f < counts[i]; f++) {
+                sb.append(' ').append(rows[i], start, ends[i][f]);
+                start = ends[i][f];
+            }
+        }
+    }
+
+    private static final int BATCH = 256;
+
+    private final Extractor[] extractors;
+    private final boolean labeled;
+    private final ThreadLocal<Features> buffers = new ThreadLocal<Features>() {
+        protected Features initialValue() {
+            return new Features();
+        }
+    };
+
+    private final AtomicLong sentences = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong features = new AtomicLong();
+
+    /**
+     * @param labeled whether the last field of a line (of two fields or
+     * more) is a label
+     */
+    public FeaturePipeline(List<Extractor> extractors, boolean labeled) {
+        this.extractors = extractors.toArray(new Extractor[extractors.size()]);
+        this.labeled = labeled;
+    }
+
+    /**
+     * Capitalization, digits and collapsed word shape, then prefixes and
+     * suffixes and the window of words around, each left out if 0.
+     *
+     * @param affix longest prefix and suffix
+     * @param window number of words on each side
+     */
+    public static List<Extractor> extractors(int affix, int window) {
+        List<Extractor> extractors = new ArrayList<Extractor>();
+        extractors.add(capitalization());
+        extractors.add(digits());
+        extractors.add(shape(true));
+        if (affix > 0)
+            extractors.add(affixes(affix));
+        if (window > 0)
+            extractors.add(window(window));
+        return extractors;
+    }
+
+    /**
+     * Extracts the features of a sentence into the calling thread's buffer,
+     * which stays valid until the thread's next call.
+     */
+    public Features extract(String[] words) {
+        Features out = buffers.get();
+        out.reset(words.length);
+        for (int i = 0; i < words.length; i++)
+            for (Extractor extractor : extractors)
+                extractor.extract(words, i, out);
+        long n = 0;
+        for (int i = 0; i < words.length; i++)
+            n += out.count(i);
+        sentences.incrementAndGet();
+        tokens.addAndGet(words.length);
+        features.addAndGet(n);
+        return out;
+    }
+
+    public long getSentences() {
+        return sentences.get();
+    }
+
+    public long getTokens() {
+        return tokens.get();
+    }
+
+    public long getFeatures() {
+        return features.get();
+    }
+
+    /**
+     * Reads token lines and writes them with their features.
+     */
+    public void run(Reader input, Writer output, int threads) throws IOException {
+        threads = Math.max(1, threads);
+        BufferedReader in = new BufferedReader(input);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // batches being processed, oldest first; bounded so output is written as it is ready
+            LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+            List<String> batch;
+            while (!(batch = readBatch(in)).isEmpty()) {
+                final List<String> lines = batch;
+                pending.add(pool.submit(new Callable<String>() {
+                    public String call() {
+                        return process(lines);
+                    }
+                }));
+                if (pending.size() >= threads * 4)
+                    output.write(getResult(pending.removeFirst()));
+            }
+            while (!pending.isEmpty())
+                output.write(getResult(pending.removeFirst()));
+        } finally {
+            pool.shutdownNow();
+            output.flush();
+        }
+    }
+
+    // the lines of up to BATCH sentences, each sentence followed by a blank line
+    private static List<String> readBatch(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        int n = 0;
+        boolean inSentence = false;
+        String line;
+        while (n < BATCH && (line = in.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                if (inSentence) {
+                    lines.add("");
+                    n++;
+                }
+                inSentence = false;
+            } else {
+                lines.add(line);
+                inSentence = true;
+            }
+        }
+        if (inSentence)
+            lines.add("");
+        return lines;
+    }
+
+    private String process(List<String> lines) {
+        StringBuilder sb = new StringBuilder(lines.size() * 64);
+        List<String[]> sentence = new ArrayList<String[]>();
+        for (String line : lines) {
+            if (line.length() > 0) {
+                StringTokenizer st = new StringTokenizer(line);
+                String[] fields = new String[st.countTokens()];
+                for (int f = 0; f < fields.length; f++)
+                    fields[f] = st.nextToken();
+                sentence.add(fields);
+                continue;
+            }
+            String[] words = new String[sentence.size()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = sentence.get(i)[0];
+            Features out = extract(words);
+            for (int i = 0; i < words.length; i++) {
+                String[] fields = sentence.get(i);
+                int last = labeled && fields.length > 1 ? fields.length - 1 : fields.length;
+                for (int f = 0; f < last; f++) {
+                    if (f > 0)
+                        sb.append(' ');
+                    sb.append(fields[f]);
+                }
+                out.appendTo(i, sb);
+                if (last < fields.length)
+                    sb.append(' ').append(fields[last]);
+                sb.append('\n');
+            }
+            sb.append('\n');
+            sentence.clear();
+        }
+        return sb.toString();
+    }
+
+    private static String getResult(Future<String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting features");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * CAPITALIZED or lowercase, by the first character, as NETPreProcessor
+     * used to write, and ALLCAPS for tokens of more than one letter, all
+     * upper case.
+     */
+    public static Extractor capitalization() {
+        return new Extractor() {
+            public void extract(String[] tokens, int i, Features out) {
+                String token = tokens[i];
+                out.add(i, Character.isUpperCase(token.charAt(0)) ? "CAPITALIZED" : "lowercase");
+                int letters = 0;
+                for (int c = 0; c < token.length(); c++) {
+                    char ch = token.charAt(c);
+                    if (Character.isLowerCase(ch))
+                        return;
+                    if (Character.isLetter(ch))
+                        letters++;
+                }
+                if (letters > 1)
+                    out.add(i, "ALLCAPS");
+            }
+        };
+    }
+
+    /**
+     * HASDIGIT for tokens with a digit, ALLDIGITS for tokens of digits only,
+     * and NUMBER for tokens of digits with inner '.', ',', '-' or '/'.
+     */
+    public static Extractor digits() {
+        return new Extractor() {
+            public void extract(String[] tokens, int i, Features out) {
+                String token = tokens[i];
+                int digits = 0, marks = 0;
+                for (int c = 0; c < token.length(); c++) {
+                    char ch = token.charAt(c);
+                    if (ch >= '0' && ch <= '9')
+                        digits++;
+                    else if (ch == '.' || ch == ',' || ch == '-' || ch == '/')
+                        marks++;
+                }
+                if (digits == 0)
+                    return;
+                out.add(i, "HASDIGIT");
+                if (digits == token.length())
+                    out.add(i, "ALLDIGITS");
+                else if (digits + marks == token.length() && isDigit(token.charAt(0))
+                        && isDigit(token.charAt(token.length() - 1)))
+                    out.add(i, "NUMBER");
+            }
+        };
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    /**
+     * SHAPE=..., the token with upper case letters mapped to X, other
+     * letters to x and digits to d.
+     *
+     * @param collapse whether runs of the same class are shortened to one
+     */
+    public static Extractor shape(final boolean collapse) {
+        return new Extractor() {
+            public void extract(String[] tokens, int i, Features out) {
+                String token = tokens[i];
+                StringBuilder sb = out.begin(i).append("SHAPE=");
+                char last = 0;
+                for (int c = 0; c < token.length(); c++) {
+                    char ch = token.charAt(c);
+                    char s = Character.isUpperCase(ch) ? 'X' : Character.isLetter(ch) ? 'x' : Character.isDigit(ch) ? 'd' : ch;
+                    if (!collapse || s != last)
+                        sb.append(s);
+                    last = s;
+                }
+                out.end(i);
+            }
+        };
+    }
+
+    /**
+     * PREn=... and SUFn=..., the lower-cased prefixes and suffixes of n
+     * characters, for n up to a maximum and shorter than the token.
+     */
+    public static Extractor affixes(final int max) {
+        return new Extractor() {
+            public void extract(String[] tokens, int i, Features out) {
+                String token = tokens[i];
+                for (int n = 1; n <= max && n < token.length(); n++) {
+                    StringBuilder sb = out.begin(i).append("PRE").append(n).append('=');
+                    for (int c = 0; c < n; c++)
+                        sb.append(Character.toLowerCase(token.charAt(c)));
+                    out.end(i);
+                    sb.append("SUF").append(n).append('=');
+                    for (int c = token.length() - n; c < token.length(); c++)
+                        sb.append(Character.toLowerCase(token.charAt(c)));
+                    out.end(i);
+                }
+            }
+        };
+    }
+
+    /**
+     * w[d]=..., the lower-cased words at offsets d from -k to k but 0, with
+     * &lt;S&gt; and &lt;/S&gt; past the ends of the sentence.
+     */
+    public static Extractor window(final int k) {
+        return new Extractor() {
+            public void extract(String[] tokens, int i, Features out) {
+                for (int d = -k; d <= k; d++) {
+                    if (d == 0)
+                        continue;
+                    StringBuilder sb = out.begin(i).append("w[").append(d > 0 ? "+" : "").append(d).append("]=");
+                    int j = i + d;
+                    if (j < 0)
+                        sb.append("<S>");
+                    else if (j >= tokens.length)
+                        sb.append("</S>");
+                    else
+                        for (int c = 0; c < tokens[j].length(); c++)
+                            sb.append(Character.toLowerCase(tokens[j].charAt(c)));
+                    out.end(i);
+                }
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int window = 0, affix = 3;
+        boolean labeled = true;
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("-"); a++) {
+            if (args[a].equals("-threads") && a + 1 < args.length)
+                threads = Integer.parseInt(args[++a]);
+            else if (args[a].equals("-window") && a + 1 < args.length)
+                window = Integer.parseInt(args[++a]);
+            else if (args[a].equals("-affix") && a + 1 < args.length)
+                affix = Integer.parseInt(args[++a]);
+            else if (args[a].equals("-unlabeled"))
+                labeled = false;
+            else
+                break;
+        }
+        if (args.length - a != 2) {
+            System.err.println("Usage: FeaturePipeline [-threads n] [-window k] [-affix n] [-unlabeled] input_file output_file");
+            System.exit(1);
+        }
+        run(new FeaturePipeline(extractors(affix, window), labeled), args[a], args[a + 1], threads);
+    }
+
+    static void run(FeaturePipeline pipeline, String input, String output, int threads) throws IOException {
+        long start = System.currentTimeMillis();
+        Reader in = new InputStreamReader(new FileInputStream(input), "UTF-8");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"), 1 << 16);
+        try {
+            pipeline.run(in, out, threads);
+        } finally {
+            in.close();
+            out.close();
+        }
+        System.err.println(pipeline.getSentences() + " sentences, " + pipeline.getTokens() + " tokens, "
+                + pipeline.getFeatures() + " features in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
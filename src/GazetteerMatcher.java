@@ -0,0 +1,592 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds gazetteer names in token sequences with a token-level Aho-Corasick
+ * automaton, in time linear in the number of tokens plus matches.
+ *
+ * Gazetteer files have one entry per line, the type of the name, a tab,
+ * then the name as whitespace-separated tokens. Tokens are numbered through
+ * a hash table from the 64-bit hash of a token to its id, and the goto
+ * function is a hash table from (state, token id) to the next state; every
+ * other part of the automaton is a flat int array. All of it is kept in
+ * {@link LongBuffer}s and {@link IntBuffer}s so that it can live on the
+ * heap or in a mapped file alike. Matching only reads the automaton, so one
+ * matcher can be shared by any number of threads.
+ *
+ * Building takes time and memory in proportion to the gazetteer, so large
+ * gazetteers are compiled once into an index file ({@link #write}), which
+ * {@link #map} maps read-only: opening it reads nothing but the header, and
+ * every process mapping the same index shares its pages.
+ */
+public class GazetteerMatcher {
+
+    /**
+     * Receives the matches of a token sequence.
+     */
+    public interface Sink {
+        /**
+         * @param begin first token of the name
+         * @param end position after its last token
+         * @param type type id of the name
+         */
+        void match(int begin, int end, int type);
+    }
+
+    private static final long EMPTY = 0L;
+
+    private static final int MAGIC = 0x47415a31; // "GAZ1"
+    private static final int VERSION = 1;
+
+    // token hash -> token id, open addressing
+    final LongBuffer vocabKeys;
+    final IntBuffer vocabValues;
+    // (state + 1) << 32 | token id -> next state, open addressing
+    final LongBuffer gotoKeys;
+    final IntBuffer gotoValues;
+    // per state: failure state, nearest failure state with names (-1 if none), depth in tokens
+    final IntBuffer fail;
+    final IntBuffer dictLink;
+    final IntBuffer depth;
+    // the types of the names ending at state s are types[typeStart[s], typeStart[s + 1])
+    final IntBuffer typeStart;
+    final IntBuffer types;
+    final String[] typeNames;
+
+    private final String[] beginFeatures;
+    private final String[] insideFeatures;
+
+    GazetteerMatcher(LongBuffer vocabKeys, IntBuffer vocabValues,
+                     LongBuffer gotoKeys, IntBuffer gotoValues,
+                     IntBuffer fail, IntBuffer dictLink, IntBuffer depth,
+                     IntBuffer typeStart, IntBuffer types, String[] typeNames) {
+        this.vocabKeys = vocabKeys;
+        this.vocabValues = vocabValues;
+        this.gotoKeys = gotoKeys;
+        this.gotoValues = gotoValues;
+        this.fail = fail;
+        this.dictLink = dictLink;
+        this.depth = depth;
+        this.typeStart = typeStart;
+        this.types = types;
+        this.typeNames = typeNames;
+        beginFeatures = new String[typeNames.length];
+        insideFeatures = new String[typeNames.length];
+        for (int t = 0; t < typeNames.length; t++) {
+            beginFeatures[t] = "GAZ_B=" + typeNames[t];
+            insideFeatures[t] = "GAZ_I=" + typeNames[t];
+        }
+    }
+
+    /**
+     * Builds a matcher from a gazetteer file.
+     */
+    public static GazetteerMatcher build(Reader in) throws IOException {
+        Builder builder = new Builder();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        List<String> tokens = new ArrayList<String>();
+        while ((line = reader.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0)
+                continue;
+            tokens.clear();
+            for (String token : line.substring(tab + 1).trim().split("\\s+"))
+                if (token.length() > 0)
+                    tokens.add(token);
+            if (!tokens.isEmpty())
+                builder.add(line.substring(0, tab).trim(), tokens);
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Builds a matcher from a UTF-8 gazetteer file.
+     */
+    public static GazetteerMatcher load(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return build(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a gazetteer file, mapping it if it is an index and building a
+     * matcher from it otherwise.
+     */
+    public static GazetteerMatcher open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        int magic;
+        try {
+            magic = file.length() >= 4 ? in.readInt() : 0;
+        } finally {
+            in.close();
+        }
+        return magic == MAGIC ? map(file) : load(file);
+    }
+
+    /**
+     * Writes the automaton as an index file for {@link #map}: a header with
+     * the offset of the tables, the table sizes and the type names, then the
+     * tables one after the other, long tables first, all big-endian.
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(vocabKeys.limit());
+        header.writeInt(gotoKeys.limit());
+        header.writeInt(numStates());
+        header.writeInt(types.limit());
+        header.writeInt(typeNames.length);
+        for (String name : typeNames)
+            header.writeUTF(name);
+        header.close();
+        // the tables start 8-byte aligned
+        int dataOffset = (12 + headerBytes.size() + 7) & ~7;
+
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dataOffset);
+            headerBytes.writeTo(out);
+            while (out.size() < dataOffset)
+                out.writeByte(0);
+            writeLongs(out, vocabKeys);
+            writeLongs(out, gotoKeys);
+            writeInts(out, vocabValues);
+            writeInts(out, gotoValues);
+            writeInts(out, fail);
+            writeInts(out, dictLink);
+            writeInts(out, depth);
+            writeInts(out, typeStart);
+            writeInts(out, types);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // renameTo doesn't replace an existing file on every platform
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Can't replace " + file.getAbsolutePath());
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, LongBuffer buf) throws IOException {
+        for (int i = 0; i < buf.limit(); i++)
+            out.writeLong(buf.get(i));
+    }
+
+    private static void writeInts(DataOutputStream out, IntBuffer buf) throws IOException {
+        for (int i = 0; i < buf.limit(); i++)
+            out.writeInt(buf.get(i));
+    }
+
+    /**
+     * Maps an index file written by {@link #write}. Each table is mapped on
+     * its own, so only a single table is limited to 2 GB.
+     */
+    public static GazetteerMatcher map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(raf.getFD()));
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a gazetteer index");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(file + " is a version " + version + " gazetteer index; expected version " + VERSION);
+            long offset = in.readInt();
+            int vocabCapacity = in.readInt();
+            int gotoCapacity = in.readInt();
+            int numStates = in.readInt();
+            int numTypeEntries = in.readInt();
+            String[] typeNames = new String[in.readInt()];
+            for (int t = 0; t < typeNames.length; t++)
+                typeNames[t] = in.readUTF();
+
+            FileChannel channel = raf.getChannel();
+            long[] sizes = {
+                    8L * vocabCapacity, 8L * gotoCapacity, 4L * vocabCapacity, 4L * gotoCapacity,
+                    4L * numStates, 4L * numStates, 4L * numStates, 4L * (numStates + 1), 4L * numTypeEntries };
+            if (channel.size() < offset + sum(sizes))
+                throw new IOException(file + " is truncated");
+            ByteBuffer[] tables = new ByteBuffer[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                tables[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, sizes[i]);
+                offset += sizes[i];
+            }
+            // the mappings stay valid once the file is closed
+            return new GazetteerMatcher(tables[0].asLongBuffer(), tables[2].asIntBuffer(),
+                    tables[1].asLongBuffer(), tables[3].asIntBuffer(),
+                    tables[4].asIntBuffer(), tables[5].asIntBuffer(), tables[6].asIntBuffer(),
+                    tables[7].asIntBuffer(), tables[8].asIntBuffer(), typeNames);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long sum(long[] a) {
+        long sum = 0;
+        for (long x : a)
+            sum += x;
+        return sum;
+    }
+
+    public int numStates() {
+        return fail.limit();
+    }
+
+    public int numTypes() {
+        return typeNames.length;
+    }
+
+    public String typeName(int type) {
+        return typeNames[type];
+    }
+
+    /**
+     * @return the id of a token, or -1 if no name contains it
+     */
+    public int tokenId(String token) {
+        long key = hashToken(token);
+        int mask = vocabKeys.limit() - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = vocabKeys.get(slot);
+            if (k == key)
+                return vocabValues.get(slot);
+            if (k == EMPTY)
+                return -1;
+        }
+    }
+
+    private int child(int state, int token) {
+        long key = ((long)(state + 1) << 32) | token;
+        int mask = gotoKeys.limit() - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = gotoKeys.get(slot);
+            if (k == key)
+                return gotoValues.get(slot);
+            if (k == EMPTY)
+                return -1;
+        }
+    }
+
+    /**
+     * @return the state after reading a token id (-1 for unknown tokens)
+     */
+    public int next(int state, int token) {
+        if (token < 0)
+            return 0;
+        while (true) {
+            int c = child(state, token);
+            if (c >= 0)
+                return c;
+            if (state == 0)
+                return 0;
+            state = fail.get(state);
+        }
+    }
+
+    /**
+     * Reports every occurrence of every name in a token sequence, in order
+     * of end position, longest first.
+     */
+    public void match(String[] tokens, Sink sink) {
+        int state = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            state = next(state, tokenId(tokens[i]));
+            int s = typeStart.get(state) < typeStart.get(state + 1) ? state : dictLink.get(state);
+            while (s > 0) {
+                int begin = i + 1 - depth.get(s);
+                for (int k = typeStart.get(s); k < typeStart.get(s + 1); k++)
+                    sink.match(begin, i + 1, types.get(k));
+                s = dictLink.get(s);
+            }
+        }
+    }
+
+    /**
+     * @return for each token, its <code>GAZ_B=type</code> and
+     * <code>GAZ_I=type</code> features, without repeats
+     */
+    public String[][] features(String[] tokens) {
+        final List<List<String>> features = new ArrayList<List<String>>(tokens.length);
+        for (int i = 0; i < tokens.length; i++)
+            features.add(null);
+        match(tokens, new Sink() {
+            public void match(int begin, int end, int type) {
+                for (int i = begin; i < end; i++) {
+                    String feature = i == begin ? beginFeatures[type] : insideFeatures[type];
+                    List<String> f = features.get(i);
+                    if (f == null) {
+                        f = new ArrayList<String>(2);
+                        features.set(i, f);
+                    }
+                    if (!f.contains(feature))
+                        f.add(feature);
+                }
+            }
+        });
+        String[][] ret = new String[tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            List<String> f = features.get(i);
+            ret[i] = f == null ? new String[0] : f.toArray(new String[f.size()]);
+        }
+        return ret;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a token, never {@link #EMPTY}.
+     */
+    static long hashToken(String token) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            h ^= token.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY ? 1L : h;
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * Collects names in a trie, then adds failure links breadth first.
+     */
+    static class Builder {
+        private final LongIntMap vocab = new LongIntMap(1 << 16);
+        private long[] tokenHashes = new long[1 << 10];
+        private final LongIntMap children = new LongIntMap(1 << 16);
+        private final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+        private final List<String> typeNames = new ArrayList<String>();
+
+        private int numStates = 1;
+        // trie edges as per-state child lists
+        private int[] firstChild = new int[] { -1 };
+        private int[] nextSibling = new int[] { -1 };
+        private int[] edgeToken = new int[] { -1 };
+        private int[] depth = new int[1];
+        // types of the names ending at a state, as linked lists
+        private int[] typeHead = new int[] { -1 };
+        private int[] typeNext = new int[16];
+        private int[] typeValue = new int[16];
+        private int numTypeEntries = 0;
+
+        void add(String type, List<String> tokens) {
+            Integer typeId = typeIds.get(type);
+            if (typeId == null) {
+                typeId = typeNames.size();
+                typeIds.put(type, typeId);
+                typeNames.add(type);
+            }
+            int state = 0;
+            for (String token : tokens) {
+                long hash = hashToken(token);
+                int id = vocab.get(hash, -1);
+                if (id < 0) {
+                    id = vocab.size();
+                    vocab.put(hash, id);
+                    if (id == tokenHashes.length)
+                        tokenHashes = Arrays.copyOf(tokenHashes, id * 2);
+                    tokenHashes[id] = hash;
+                }
+                long key = ((long)(state + 1) << 32) | id;
+                int child = children.get(key, -1);
+                if (child < 0) {
+                    child = newState(state, id);
+                    children.put(key, child);
+                }
+                state = child;
+            }
+            for (int e = typeHead[state]; e >= 0; e = typeNext[e])
+                if (typeValue[e] == typeId)
+                    return;
+            if (numTypeEntries == typeNext.length) {
+                typeNext = Arrays.copyOf(typeNext, numTypeEntries * 2);
+                typeValue = Arrays.copyOf(typeValue, numTypeEntries * 2);
+            }
+            typeValue[numTypeEntries] = typeId;
+            typeNext[numTypeEntries] = typeHead[state];
+            typeHead[state] = numTypeEntries++;
+        }
+
+        private int newState(int parent, int token) {
+            int s = numStates++;
+            if (s == firstChild.length) {
+                int n = s * 2;
+                firstChild = Arrays.copyOf(firstChild, n);
+                nextSibling = Arrays.copyOf(nextSibling, n);
+                edgeToken = Arrays.copyOf(edgeToken, n);
+                depth = Arrays.copyOf(depth, n);
+                typeHead = Arrays.copyOf(typeHead, n);
+            }
+            firstChild[s] = -1;
+            typeHead[s] = -1;
+            edgeToken[s] = token;
+            depth[s] = depth[parent] + 1;
+            nextSibling[s] = firstChild[parent];
+            firstChild[parent] = s;
+            return s;
+        }
+
+        GazetteerMatcher finish() {
+            int[] fail = new int[numStates];
+            int[] dictLink = new int[numStates];
+            int[] queue = new int[numStates];
+            int head = 0, tail = 0;
+            dictLink[0] = -1;
+            for (int c = firstChild[0]; c >= 0; c = nextSibling[c]) {
+                fail[c] = 0;
+                dictLink[c] = -1;
+                queue[tail++] = c;
+            }
+            while (head < tail) {
+                int s = queue[head++];
+                for (int c = firstChild[s]; c >= 0; c = nextSibling[c]) {
+                    int token = edgeToken[c];
+                    int f = fail[s];
+                    int g;
+                    while ((g = children.get(((long)(f + 1) << 32) | token, -1)) < 0 && f != 0)
+                        f = fail[f];
+                    fail[c] = g >= 0 ? g : 0;
+                    dictLink[c] = typeHead[fail[c]] >= 0 ? fail[c] : dictLink[fail[c]];
+                    queue[tail++] = c;
+                }
+            }
+
+            int[] typeStart = new int[numStates + 1];
+            int[] types = new int[numTypeEntries];
+            int n = 0;
+            for (int s = 0; s < numStates; s++) {
+                typeStart[s] = n;
+                for (int e = typeHead[s]; e >= 0; e = typeNext[e])
+                    types[n++] = typeValue[e];
+            }
+            typeStart[numStates] = n;
+
+            long[] vocabKeys = new long[capacity(vocab.size())];
+            int[] vocabValues = new int[vocabKeys.length];
+            long[] gotoKeys = new long[capacity(numStates - 1)];
+            int[] gotoValues = new int[gotoKeys.length];
+            for (int id = 0; id < vocab.size(); id++)
+                put(vocabKeys, vocabValues, tokenHashes[id], id);
+            for (int s = 0; s < numStates; s++)
+                for (int c = firstChild[s]; c >= 0; c = nextSibling[c])
+                    put(gotoKeys, gotoValues, ((long)(s + 1) << 32) | edgeToken[c], c);
+
+            return new GazetteerMatcher(LongBuffer.wrap(vocabKeys), IntBuffer.wrap(vocabValues),
+                    LongBuffer.wrap(gotoKeys), IntBuffer.wrap(gotoValues),
+                    IntBuffer.wrap(fail), IntBuffer.wrap(dictLink), IntBuffer.wrap(Arrays.copyOf(depth, numStates)),
+                    IntBuffer.wrap(typeStart), IntBuffer.wrap(types),
+                    typeNames.toArray(new String[typeNames.size()]));
+        }
+    }
+
+    // a power of two at least twice the number of entries
+    static int capacity(int entries) {
+        int capacity = 16;
+        while (capacity < entries * 2)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    static void put(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    /**
+     * <code>compile</code> builds the index file of a gazetteer file.
+     * <code>annotate</code> is a preprocessing stage: it copies a file of
+     * token lines, appending the gazetteer features of each token before its
+     * label (the last field); the gazetteer may be an index or a text file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("compile")) {
+            long start = System.currentTimeMillis();
+            GazetteerMatcher matcher = load(new File(args[1]));
+            matcher.write(new File(args[2]));
+            System.err.println(matcher.numStates() + " states, " + matcher.numTypes() + " types, "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } else if (args.length == 4 && args[0].equals("annotate")) {
+            annotate(open(new File(args[1])), new File(args[2]), new File(args[3]));
+        } else {
+            System.err.println("Usage: GazetteerMatcher compile gazetteer_file index_file");
+            System.err.println("       GazetteerMatcher annotate gazetteer_or_index_file input_file output_file");
+            System.exit(1);
+        }
+    }
+
+    private static void annotate(GazetteerMatcher matcher, File input, File output) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        try {
+            List<String> sentence = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    sentence.add(line);
+                    continue;
+                }
+                writeSentence(matcher, sentence, out);
+                out.write(line);
+                out.write('\n');
+            }
+            writeSentence(matcher, sentence, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void writeSentence(GazetteerMatcher matcher, List<String> sentence, Writer out)
+            throws IOException {
+        String[] words = new String[sentence.size()];
+        for (int i = 0; i < words.length; i++)
+            words[i] = sentence.get(i).trim().split("\\s+")[0];
+        String[][] features = matcher.features(words);
+        for (int i = 0; i < words.length; i++) {
+            String line = sentence.get(i).trim();
+            int label = line.lastIndexOf(' ');
+            StringBuilder sb = new StringBuilder(label > 0 ? line.substring(0, label) : line);
+            for (String feature : features[i])
+                sb.append(' ').append(feature);
+            if (label > 0)
+                sb.append(line.substring(label));
+            out.write(sb.toString());
+            out.write('\n');
+        }
+        sentence.clear();
+    }
+}
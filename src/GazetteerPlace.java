@@ -0,0 +1,28 @@
+/**
+ * A place reported by a gazetteer server: its display name, its feature
+ * type (the class it has in the server's feature type thesaurus) and the
+ * coordinates of its footprint.
+ */
+public final class GazetteerPlace {
+
+    private static final double[] NO_FOOTPRINT = new double[0];
+
+    public final String name;
+    public final String type;
+    /** Footprint coordinates in the order the server gave them; may be empty. */
+    public final double[] footprint;
+
+    public GazetteerPlace(String name, String type) {
+        this(name, type, NO_FOOTPRINT);
+    }
+
+    public GazetteerPlace(String name, String type, double[] footprint) {
+        this.name = name;
+        this.type = type;
+        this.footprint = footprint;
+    }
+
+    public String toString() {
+        return name + " (" + type + ")";
+    }
+}
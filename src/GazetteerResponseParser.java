@@ -0,0 +1,310 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming parser of gazetteer protocol responses that hands each standard
+ * report to a {@link Sink} as soon as it ends, so memory stays flat however
+ * large the response.
+ *
+ * Only the names, the feature type (the primary class, else the first) and
+ * the footprint coordinates of a report are kept. Text is gathered in one
+ * reused buffer, coordinates are parsed from it without making strings, and
+ * feature types are interned, so the garbage per report is about the name
+ * strings. Validation against a local copy of the protocol schema is
+ * optional. A parser can be used by several threads; each thread gets its
+ * own SAX parser.
+ */
+public class GazetteerResponseParser {
+
+    /**
+     * Receives the reports of a response. The list and array arguments are
+     * reused for the next report, so they must be copied to be kept.
+     */
+    public interface Sink {
+        /**
+         * @param name display name of the place, or its first name
+         * @param names every name of the place, the display name included
+         * @param type feature type, or null
+         * @param footprint the footprint coordinates in document order
+         * @param footprintLength number of coordinates in footprint
+         */
+        void place(String name, List<String> names, String type,
+                   double[] footprint, int footprintLength) throws SAXException;
+    }
+
+    private final SAXParserFactory factory;
+    private final ThreadLocal<SAXParser> parsers;
+
+    /**
+     * @param schema local protocol schema to validate against, or null not
+     * to validate
+     */
+    public GazetteerResponseParser(URL schema) throws SAXException {
+        factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        if (schema != null)
+            factory.setSchema(SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schema));
+        parsers = new ThreadLocal<SAXParser>() {
+            protected SAXParser initialValue() {
+                try {
+                    return factory.newSAXParser();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Can't create an XML parser", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Parses a response, leaving the stream open.
+     */
+    public void parse(InputStream in, Sink sink) throws IOException, SAXException {
+        SAXParser parser = parsers.get();
+        parser.reset();
+        // parsers close their input
+        parser.parse(new FilterInputStream(in) {
+            public void close() {
+            }
+        }, new ReportHandler(sink));
+    }
+
+    private static class ReportHandler extends DefaultHandler {
+        private final Sink sink;
+        private final StringBuilder text = new StringBuilder();
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, String> types = new HashMap<String, String>();
+        private double[] footprint = new double[16];
+        private int footprintLength;
+
+        private boolean inReport = false;
+        private boolean collecting = false;
+        private int footprintDepth = 0;
+        private String displayName;
+        private String type;
+        private boolean primaryType;
+
+        ReportHandler(Sink sink) {
+            this.sink = sink;
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (localName.equals("gazetteer-standard-report")) {
+                inReport = true;
+                names.clear();
+                footprintLength = 0;
+                displayName = null;
+                type = null;
+                primaryType = false;
+            } else if (!inReport) {
+                return;
+            } else if (footprintDepth > 0) {
+                footprintDepth++;
+            } else if (localName.equals("footprint")) {
+                footprintDepth = 1;
+                startText();
+            } else if (localName.equals("display-name") || localName.equals("name")) {
+                startText();
+            } else if (localName.equals("class")) {
+                boolean primary = "true".equals(attributes.getValue("primary"));
+                if (type == null || (primary && !primaryType)) {
+                    primaryType = primary;
+                    startText();
+                }
+            }
+        }
+
+        private void startText() {
+            text.setLength(0);
+            collecting = true;
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (collecting)
+                text.append(ch, start, length);
+        }
+
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (footprintDepth > 0) {
+                if (--footprintDepth == 0) {
+                    parseNumbers();
+                    collecting = false;
+                } else {
+                    // keep the numbers of adjacent elements apart
+                    text.append(' ');
+                }
+            } else if (collecting) {
+                collecting = false;
+                if (localName.equals("display-name")) {
+                    displayName = trimmed();
+                    if (!names.contains(displayName))
+                        names.add(displayName);
+                } else if (localName.equals("name")) {
+                    String name = trimmed();
+                    if (!names.contains(name))
+                        names.add(name);
+                } else if (localName.equals("class")) {
+                    String t = trimmed();
+                    type = types.get(t);
+                    if (type == null) {
+                        type = t;
+                        types.put(t, t);
+                    }
+                }
+            } else if (inReport && localName.equals("gazetteer-standard-report")) {
+                inReport = false;
+                String name = displayName != null ? displayName : names.isEmpty() ? "" : names.get(0);
+                sink.place(name, names, type, footprint, footprintLength);
+            }
+        }
+
+        private String trimmed() {
+            int start = 0, end = text.length();
+            while (start < end && text.charAt(start) <= ' ')
+                start++;
+            while (end > start && text.charAt(end - 1) <= ' ')
+                end--;
+            return text.substring(start, end);
+        }
+
+        /**
+         * Parses the numbers in the text, separated by commas or whitespace.
+         */
+        private void parseNumbers() throws SAXException {
+            int n = text.length();
+            int i = 0;
+            while (i < n) {
+                char c = text.charAt(i);
+                if (c == ',' || c <= ' ') {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < n && text.charAt(i) != ',' && text.charAt(i) > ' ')
+                    i++;
+                if (footprintLength == footprint.length)
+                    footprint = Arrays.copyOf(footprint, footprintLength * 2);
+                try {
+                    footprint[footprintLength++] = parseNumber(text, start, i);
+                } catch (NumberFormatException e) {
+                    throw new SAXException("Bad coordinate '" + text.substring(start, i) + "'", e);
+                }
+            }
+        }
+
+        public void error(SAXParseException e) throws SAXException {
+            throw e;
+        }
+    }
+
+    /**
+     * Parses a decimal number without an exponent directly, and anything
+     * else, including a sign or point without digits, with
+     * {@link Double#parseDouble}.
+     */
+    static double parseNumber(CharSequence s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+            negative = s.charAt(i++) == '-';
+        long mantissa = 0;
+        int digits = 0;
+        boolean any = false;
+        int scale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                any = true;
+                if (point)
+                    scale++;
+                if (mantissa != 0 && ++digits > 15)
+                    break;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i < end || !any || scale >= POWERS.length)
+            return Double.parseDouble(s.subSequence(start, end).toString());
+        // exact: the mantissa and the power of ten are both exact doubles
+        double value = mantissa / POWERS[scale];
+        return negative ? -value : value;
+    }
+
+    private static final double[] POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Converts a saved response to a query request to a gazetteer file for
+     * {@link GazetteerMatcher}: one "type TAB name" line per name of each
+     * place in its standard reports. Anything before the first '<', such as
+     * HTTP headers, is skipped; places without a feature type are left out.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: java GazetteerResponseParser response-file gazetteer-file");
+            System.exit(1);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]), 1 << 16);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"), 1 << 16);
+        final int[] counts = new int[2];
+        try {
+            // skip any HTTP headers saved with the response
+            in.mark(1);
+            int b;
+            while ((b = in.read()) >= 0 && b != '<')
+                in.mark(1);
+            in.reset();
+            new GazetteerResponseParser(null).parse(in, new Sink() {
+                public void place(String name, List<String> names, String type,
+                                  double[] footprint, int footprintLength) throws SAXException {
+                    if (type == null) {
+                        counts[1]++;
+                        return;
+                    }
+                    counts[0]++;
+                    try {
+                        for (String n : names) {
+                            out.write(type);
+                            out.write('\t');
+                            out.write(n);
+                            out.write('\n');
+                        }
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            });
+        } finally {
+            in.close();
+            out.close();
+        }
+        System.err.println(counts[0] + " places written, " + counts[1] + " without a feature type left out");
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for a gazetteer server, to run {@link CachingGazetteerClient}
+ * and {@link GazetteerClient} against.
+ *
+ * It answers query requests made of exact name queries, alone or ORed
+ * together, with a standard report for every place of a gazetteer file
+ * (type, a tab, then the name, as {@link GazetteerMatcher} reads) whose
+ * name equals a queried name, ignoring case. It answers every other request
+ * with an empty response, and counts the requests it gets.
+ */
+public class GazetteerStubServer {
+
+    private final Map<String, List<GazetteerPlace>> places = new HashMap<String, List<GazetteerPlace>>();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     */
+    public GazetteerStubServer(int port, String gazetteerFile) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(gazetteerFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0)
+                    continue;
+                String name = line.substring(tab + 1).trim();
+                String key = CachingGazetteerClient.key(name);
+                List<GazetteerPlace> list = places.get(key);
+                if (list == null) {
+                    list = new ArrayList<GazetteerPlace>(1);
+                    places.put(key, list);
+                }
+                list.add(new GazetteerPlace(name, line.substring(0, tab).trim()));
+            }
+        } finally {
+            in.close();
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final Set<String> queried = new LinkedHashSet<String>();
+        InputStream in = exchange.getRequestBody();
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(in, new DefaultHandler() {
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if (localName.equals("name-query") && attributes.getValue("text") != null)
+                        queried.add(CachingGazetteerClient.key(attributes.getValue("text")));
+                }
+            });
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        } finally {
+            in.close();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(bytes, "UTF-8");
+        w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<gazetteer-service xmlns=\"http://www.alexandria.ucsb.edu/gazetteer\" version=\"1.2\">" +
+                "<query-response><standard-reports>");
+        int id = 0;
+        for (String key : queried) {
+            List<GazetteerPlace> list = places.get(key);
+            if (list == null)
+                continue;
+            for (GazetteerPlace place : list) {
+                w.write("<gazetteer-standard-report><identifier>stub-" + (id++) + "</identifier>");
+                w.write("<display-name>");
+                CachingGazetteerClient.escape(place.name, w);
+                w.write("</display-name><names><name primary=\"true\">");
+                CachingGazetteerClient.escape(place.name, w);
+                w.write("</name></names><classes><class primary=\"true\">");
+                CachingGazetteerClient.escape(place.type, w);
+                w.write("</class></classes></gazetteer-standard-report>");
+            }
+        }
+        w.write("</standard-reports></query-response></gazetteer-service>");
+        w.close();
+
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+        exchange.sendResponseHeaders(200, bytes.size());
+        OutputStream out = exchange.getResponseBody();
+        try {
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java GazetteerStubServer port gazetteer-file");
+            System.exit(1);
+        }
+        GazetteerStubServer stub = new GazetteerStubServer(Integer.parseInt(args[0]), args[1]);
+        stub.start();
+        System.err.println("Gazetteer stub listening on http://127.0.0.1:" + stub.getPort() + "/");
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+
+/**
+ * Base class of the Viterbi decoders written by {@link DecoderGenerator}.
+ * <p>
+ * A generated subclass hard-codes the state graph of one model (its
+ * transitions, initial and final weights) with the loops over states
+ * unrolled; the feature weights stay in the {@link DenseCRF} the decoder is
+ * created with. The constructor refuses a model whose structure differs
+ * from the one the class was generated from. Instances keep reusable
+ * buffers and are not thread-safe.
+ */
+public abstract class GeneratedDecoder
+{
+    protected final DenseCRF model;
+
+    private final double[] dot;
+    private double[] trans = new double[0];
+    private int[] backPointer = new int[0];
+
+    protected GeneratedDecoder(DenseCRF model, long structure)
+    {
+        if (model.isSinglePrecision())
+            throw new IllegalArgumentException("Generated decoders need a double-precision model");
+        if (structureHash(model) != structure)
+            throw new IllegalArgumentException("Model does not match the state graph of " + getClass().getName());
+        this.model = model;
+        this.dot = new double[model.numWeights];
+    }
+
+    /**
+     * Runs the Viterbi recurrence over scored transitions.
+     *
+     * @param trans transition scores, <code>numTransitions</code> per position
+     * @param length input length
+     * @param backPointer receives the best incoming transition of every node
+     * after the first position, <code>numStates</code> per position
+     * @return the best final state, or -1 if there is no path
+     */
+    protected abstract int viterbi(double[] trans, int length, int[] backPointer);
+
+    /**
+     * Decodes one input sequence.
+     *
+     * @param input a sequence of {@link FeatureVector}s
+     * @return the labels of the best path
+     */
+    public Sequence transduce(Sequence input)
+    {
+        int length = input.size();
+        int S = model.numStates, T = model.numTransitions;
+        if (trans.length < length * T)
+            trans = new double[length * T];
+        if (backPointer.length < length * S)
+            backPointer = new int[length * S];
+        for (int ip = 0; ip < length; ip++)
+            model.score((FeatureVector)input.get(ip), dot, trans, ip * T);
+
+        int state = viterbi(trans, length, backPointer);
+        if (state < 0)
+            throw new IllegalStateException("No path through the lattice");
+        String[] labels = new String[length];
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int t = backPointer[ip * S + state];
+            labels[ip] = model.getLabelName(t);
+            state = model.transitionSource[t];
+        }
+        return new ArraySequence<String>(labels);
+    }
+
+    /**
+     * Fingerprint of everything a generated decoder hard-codes.
+     */
+    static long structureHash(DenseCRF model)
+    {
+        long h = 1125899906842597L;
+        h = 31 * h + model.numStates;
+        h = 31 * h + model.numTransitions;
+        for (int t = 0; t < model.numTransitions; t++)
+        {
+            h = 31 * h + model.transitionSource[t];
+            h = 31 * h + model.transitionDest[t];
+        }
+        for (int s = 0; s < model.numStates; s++)
+        {
+            h = 31 * h + Double.doubleToLongBits(model.initialWeight[s]);
+            h = 31 * h + Double.doubleToLongBits(model.finalWeight[s]);
+        }
+        return h;
+    }
+
+    /**
+     * Loads a compiled decoder class and binds it to a model.
+     *
+     * @param classDir directory holding the compiled class
+     * @param className name of the generated class
+     * @param model the model the class was generated from
+     */
+    public static GeneratedDecoder load(File classDir, String className, DenseCRF model) throws Exception
+    {
+        ClassLoader loader = new URLClassLoader(new URL[] { classDir.toURI().toURL() },
+                GeneratedDecoder.class.getClassLoader());
+        Class<?> c = Class.forName(className, true, loader);
+        Constructor<?> constructor = c.getConstructor(DenseCRF.class);
+        return (GeneratedDecoder)constructor.newInstance(model);
+    }
+}
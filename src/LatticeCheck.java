@@ -0,0 +1,103 @@
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.ObjectInputStream;
+import java.util.regex.Pattern;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.SumLatticeDefault;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+/**
+ * Validates every lattice kernel, in double and single precision, against
+ * MALLET's own lattices on a data set: the log partition function must agree
+ * with {@link SumLatticeDefault} to within a relative tolerance, and the
+ * Viterbi labels must weigh at least as much as those of
+ * {@link CRF#transduce}, again to within the tolerance. Both label sequences
+ * are weighed by a {@link SumLatticeDefault} constrained to them. The labels
+ * themselves may differ: MALLET's Viterbi sometimes settles on a lighter
+ * path near the ends of a sequence. Exits with status 1 if any check fails.
+ * <p>
+ * Usage: LatticeCheck model-file data-file [tolerance]
+ */
+public class LatticeCheck
+{
+    private static final String[] KERNELS = { "scalar", "blocked" };
+
+    private LatticeCheck()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage:");
+            System.out.println("args[0] model file saved by Tagger");
+            System.out.println("args[1] data file");
+            System.out.println("args[2] relative tolerance on log Z and path weights (default 1e-4)");
+            System.exit(-1);
+        }
+        ObjectInputStream s = new ObjectInputStream(new FileInputStream(args[0]));
+        CRF crf = (CRF)s.readObject();
+        s.close();
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 1e-4;
+
+        Pipe p = crf.getInputPipe();
+        p.setTargetProcessing(false);
+        InstanceList data = new InstanceList(p);
+        data.addThruPipe(new LineGroupIterator(new FileReader(args[1]), Pattern.compile("^\\s*$"), true));
+
+        DenseCRF[] models = { new DenseCRF(crf, false), new DenseCRF(crf, true) };
+        boolean ok = true;
+        for (DenseCRF model : models)
+        {
+            for (String kernel : KERNELS)
+            {
+                DenseLattice lattice = DenseLattice.create(model, kernel);
+                double maxError = 0.0;
+                int labelErrors = 0, tokens = 0, differing = 0, worse = 0;
+                for (Instance inst : data)
+                {
+                    Sequence input = (Sequence)inst.getData();
+                    double reference = new SumLatticeDefault(crf, input).getTotalWeight();
+                    lattice.setInput(input);
+                    double logZ = lattice.forward();
+                    maxError = Math.max(maxError, Math.abs(logZ - reference) / Math.max(1.0, Math.abs(reference)));
+
+                    Sequence expected = crf.transduce(input);
+                    Sequence output = lattice.bestOutputSequence(input);
+                    int errors = 0;
+                    for (int i = 0; i < expected.size(); i++)
+                    {
+                        if (!expected.get(i).toString().equals(output.get(i).toString()))
+                            errors++;
+                        tokens++;
+                    }
+                    if (errors == 0)
+                        continue;
+                    labelErrors += errors;
+                    differing++;
+                    double expectedWeight = new SumLatticeDefault(crf, input, expected).getTotalWeight();
+                    double outputWeight = new SumLatticeDefault(crf, input, output).getTotalWeight();
+                    if (outputWeight < expectedWeight - tolerance * Math.max(1.0, Math.abs(expectedWeight)))
+                        worse++;
+                }
+                String name = kernel + (model.isSinglePrecision() ? "/float" : "/double");
+                System.out.println(name + ": max relative log Z error " + maxError
+                        + ", Viterbi label disagreements " + labelErrors + "/" + tokens
+                        + " in " + differing + " sequences, " + worse + " with a lighter path than MALLET's");
+                if (maxError > tolerance || worse > 0)
+                {
+                    System.out.println(name + ": FAILED");
+                    ok = false;
+                }
+            }
+        }
+        if (!ok)
+            System.exit(1);
+    }
+}
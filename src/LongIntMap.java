@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long keys to int values, without boxing.
+ * Not thread-safe.
+ */
+public class LongIntMap {
+
+    // keys[slot] == FREE marks an empty slot; the key FREE itself is kept apart
+    private static final long FREE = 0L;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private boolean hasFree = false;
+    private int freeValue;
+
+    public LongIntMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @return the value of a key, or <code>missing</code> if it has none
+     */
+    public int get(long key, int missing) {
+        if (key == FREE)
+            return hasFree ? freeValue : missing;
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return values[slot];
+            if (keys[slot] == FREE)
+                return missing;
+        }
+    }
+
+    public void put(long key, int value) {
+        if (key == FREE) {
+            if (!hasFree)
+                size++;
+            hasFree = true;
+            freeValue = value;
+            return;
+        }
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != FREE && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length)
+            rehash();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE)
+                continue;
+            int slot = slot(oldKeys[i], mask);
+            while (keys[slot] != FREE)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+        hasFree = false;
+    }
+}
@@ -0,0 +1,359 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import cc.mallet.types.Sequence;
+
+/**
+ * Decodes batches of sequences with a confidence for every token and for
+ * every entity span on the Viterbi path.
+ * <p>
+ * One Viterbi and one forward-backward pass are run per sequence on a
+ * single reusable {@link DenseLattice}; the results of a batch are kept in
+ * flat primitive arrays that are reused by the next batch. Forward-backward
+ * runs in the probability domain with one exponential per transition,
+ * which keeps decoding within about twice the cost of plain Viterbi; it
+ * falls back to the lattice's log-domain recurrences if the scores under-
+ * or overflow.
+ * <p>
+ * The confidence of a token is the posterior probability of its Viterbi
+ * label. The confidence of a span is the posterior probability of the
+ * whole run of Viterbi states covering it, which for a chain is
+ * <code>exp(alpha[b] + transitions b+1..e + beta[e] - log Z)</code>.
+ * <p>
+ * Spans are read from BIO labels: <code>B-X</code> starts a span of type X,
+ * <code>I-X</code> continues it (or starts one if it does not follow the
+ * same type), and anything else ends it. Instances are not thread-safe.
+ */
+public class MarginalDecoder
+{
+    public static class Span
+    {
+        public final int sequence;
+        public final int start;   // first token
+        public final int end;     // last token, inclusive
+        public final String type;
+        public final double confidence;
+
+        public Span(int sequence, int start, int end, String type, double confidence)
+        {
+            this.sequence = sequence;
+            this.start = start;
+            this.end = end;
+            this.type = type;
+            this.confidence = confidence;
+        }
+
+        @Override
+        public String toString()
+        {
+            return sequence + ":" + start + "-" + end + " " + type + " " + confidence;
+        }
+    }
+
+    private final DenseLattice lattice;
+    // the transitions emitting each label
+    private final int[] labelStart;
+    private final int[] labelTransitions;
+
+    private int batchSize = 0;
+    private int[] offsets = new int[1];
+    private int[] labels = new int[0];
+    private int[] seqPath = new int[0];
+    private double[] tokenConfidence = new double[0];
+    // a span b..e has log posterior startFactor[b] + endFactor[e]
+    private double[] startFactor = new double[0];
+    private double[] endFactor = new double[0];
+
+    // probability-domain forward-backward of the current sequence
+    private double[] weight = new double[0];
+    private double[] alpha = new double[0];
+    private double[] beta = new double[0];
+    private double[] scale = new double[0];
+    private double[] logScale = new double[0];
+
+    public MarginalDecoder(DenseLattice lattice)
+    {
+        this.lattice = lattice;
+        DenseCRF model = lattice.getModel();
+        labelStart = new int[model.labelNames.length + 1];
+        for (int t = 0; t < model.numTransitions; t++)
+            labelStart[model.transitionLabel[t] + 1]++;
+        for (int l = 0; l < model.labelNames.length; l++)
+            labelStart[l + 1] += labelStart[l];
+        labelTransitions = new int[model.numTransitions];
+        int[] fill = labelStart.clone();
+        for (int t = 0; t < model.numTransitions; t++)
+            labelTransitions[fill[model.transitionLabel[t]]++] = t;
+    }
+
+    public MarginalDecoder(DenseCRF model)
+    {
+        this(DenseLattice.create(model));
+    }
+
+    /**
+     * Decodes a batch, replacing the results of the previous one.
+     *
+     * @param batch sequences of {@link cc.mallet.types.FeatureVector}s
+     */
+    public void decode(List<? extends Sequence> batch)
+    {
+        DenseCRF model = lattice.getModel();
+        batchSize = batch.size();
+        if (offsets.length < batchSize + 1)
+            offsets = new int[batchSize + 1];
+        int total = 0;
+        for (int i = 0; i < batchSize; i++)
+        {
+            offsets[i] = total;
+            total += batch.get(i).size();
+        }
+        offsets[batchSize] = total;
+        if (labels.length < total)
+        {
+            labels = new int[total];
+            tokenConfidence = new double[total];
+            startFactor = new double[total];
+            endFactor = new double[total];
+        }
+
+        for (int i = 0; i < batchSize; i++)
+        {
+            lattice.setInput(batch.get(i));
+            int length = lattice.length();
+            if (seqPath.length < length)
+                seqPath = new int[length];
+            lattice.viterbi(seqPath);
+            int base = offsets[i];
+            for (int ip = 0; ip < length; ip++)
+                labels[base + ip] = model.transitionLabel[seqPath[ip]];
+            if (!scaledPosteriors(length, base))
+                logPosteriors(length, base);
+        }
+    }
+
+    /**
+     * Computes the confidences of the Viterbi path of the sequence in the
+     * lattice by forward-backward in the probability domain: the scores of
+     * every position are exponentiated once, relative to their maximum, and
+     * the forward scores are normalized at every position. The same
+     * exponentials serve the forward and backward recurrences and the
+     * posteriors, which the log domain would each pay for again.
+     *
+     * @return false if the scores under- or overflowed, leaving the
+     * confidences to {@link #logPosteriors(int, int)}
+     */
+    private boolean scaledPosteriors(int length, int base)
+    {
+        DenseCRF m = lattice.getModel();
+        int S = m.numStates, T = m.numTransitions;
+        int nodes = (length + 1) * S;
+        if (weight.length < length * T)
+            weight = new double[length * T];
+        if (alpha.length < nodes)
+        {
+            alpha = new double[nodes];
+            beta = new double[nodes];
+            scale = new double[length + 1];
+            logScale = new double[length + 1];
+        }
+
+        // alpha at ip is the forward score divided by exp(logScale[ip])
+        double max = Double.NEGATIVE_INFINITY;
+        for (int s = 0; s < S; s++)
+            max = Math.max(max, m.initialWeight[s]);
+        if (max == Double.NEGATIVE_INFINITY)
+            return false;
+        for (int s = 0; s < S; s++)
+            alpha[s] = Math.exp(m.initialWeight[s] - max);
+        logScale[0] = max;
+        for (int ip = 0; ip < length; ip++)
+        {
+            int in = ip * S, out = in + S, tr = ip * T;
+            double top = Double.NEGATIVE_INFINITY;
+            for (int t = 0; t < T; t++)
+                top = Math.max(top, lattice.transitionAt(ip, t));
+            if (top == Double.NEGATIVE_INFINITY)
+                return false;
+            for (int t = 0; t < T; t++)
+                weight[tr + t] = Math.exp(lattice.transitionAt(ip, t) - top);
+            double c = 0.0;
+            for (int d = 0; d < S; d++)
+            {
+                double sum = 0.0;
+                for (int t = m.destStart[d]; t < m.destStart[d + 1]; t++)
+                    sum += alpha[in + m.transitionSource[t]] * weight[tr + t];
+                alpha[out + d] = sum;
+                c += sum;
+            }
+            if (!(c > 0.0))
+                return false;
+            for (int d = 0; d < S; d++)
+                alpha[out + d] /= c;
+            scale[ip + 1] = c;
+            logScale[ip + 1] = logScale[ip] + top + Math.log(c);
+        }
+
+        // beta is scaled by the same factors, so that at every position
+        // the sum of alpha * beta over the states is z
+        double finalMax = Double.NEGATIVE_INFINITY;
+        for (int s = 0; s < S; s++)
+            finalMax = Math.max(finalMax, m.finalWeight[s]);
+        if (finalMax == Double.NEGATIVE_INFINITY)
+            return false;
+        double z = 0.0;
+        for (int s = 0; s < S; s++)
+        {
+            beta[length * S + s] = Math.exp(m.finalWeight[s] - finalMax);
+            z += alpha[length * S + s] * beta[length * S + s];
+        }
+        if (!(z > 0.0))
+            return false;
+        for (int ip = length - 1; ip >= 0; ip--)
+        {
+            int here = ip * S, next = here + S, tr = ip * T;
+            for (int s = 0; s < S; s++)
+            {
+                double sum = 0.0;
+                for (int k = m.sourceStart[s]; k < m.sourceStart[s + 1]; k++)
+                {
+                    int t = m.sourceOrder[k];
+                    sum += weight[tr + t] * beta[next + m.transitionDest[t]];
+                }
+                sum /= scale[ip + 1];
+                if (sum == Double.POSITIVE_INFINITY)
+                    return false;
+                beta[here + s] = sum;
+            }
+        }
+        double logZ = logScale[length] + finalMax + Math.log(z);
+
+        double pathScore = 0.0;
+        for (int ip = 0; ip < length; ip++)
+        {
+            int t = seqPath[ip];
+            int label = m.transitionLabel[t];
+            int state = m.transitionDest[t];
+            int in = ip * S, out = in + S, tr = ip * T;
+            // posterior of the label: all transitions at ip emitting it
+            double p = 0.0;
+            for (int k = labelStart[label]; k < labelStart[label + 1]; k++)
+            {
+                int u = labelTransitions[k];
+                p += alpha[in + m.transitionSource[u]] * weight[tr + u] * beta[out + m.transitionDest[u]];
+            }
+            tokenConfidence[base + ip] = Math.min(1.0, p / (scale[ip + 1] * z));
+            if (ip > 0)
+                pathScore += lattice.transitionAt(ip, t);
+            // the log backward score at ip+1 is log beta + logScale[length] + finalMax - logScale[ip+1]
+            startFactor[base + ip] = Math.log(alpha[out + state]) + logScale[ip + 1] - pathScore - logZ;
+            endFactor[base + ip] = Math.log(beta[out + state]) + logScale[length] + finalMax - logScale[ip + 1]
+                    + pathScore;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the confidences of the Viterbi path with the log-domain
+     * recurrences of the lattice, which cannot underflow.
+     */
+    private void logPosteriors(int length, int base)
+    {
+        DenseCRF model = lattice.getModel();
+        double logZ = lattice.forward();
+        lattice.backward();
+        double pathScore = 0.0;
+        for (int ip = 0; ip < length; ip++)
+        {
+            int t = seqPath[ip];
+            int label = model.transitionLabel[t];
+            int state = model.transitionDest[t];
+            // posterior of the label: all transitions at ip emitting it
+            double p = 0.0;
+            for (int k = labelStart[label]; k < labelStart[label + 1]; k++)
+            {
+                int u = labelTransitions[k];
+                p += Math.exp(lattice.alphaAt(ip, model.transitionSource[u])
+                        + lattice.transitionAt(ip, u)
+                        + lattice.betaAt(ip + 1, model.transitionDest[u]) - logZ);
+            }
+            tokenConfidence[base + ip] = Math.min(1.0, p);
+            // pathScore is the score of the path's transitions 1..ip, so the
+            // transitions strictly inside a span b..e are pathScore(e) - pathScore(b)
+            if (ip > 0)
+                pathScore += lattice.transitionAt(ip, t);
+            startFactor[base + ip] = lattice.alphaAt(ip + 1, state) - pathScore - logZ;
+            endFactor[base + ip] = lattice.betaAt(ip + 1, state) + pathScore;
+        }
+    }
+
+    /**
+     * @return the number of sequences in the current batch
+     */
+    public int size()
+    {
+        return batchSize;
+    }
+
+    public int length(int sequence)
+    {
+        return offsets[sequence + 1] - offsets[sequence];
+    }
+
+    public String label(int sequence, int position)
+    {
+        return lattice.getModel().labelNames[labels[offsets[sequence] + position]];
+    }
+
+    public double confidence(int sequence, int position)
+    {
+        return tokenConfidence[offsets[sequence] + position];
+    }
+
+    /**
+     * Posterior probability that the Viterbi states from <code>start</code>
+     * to <code>end</code> (inclusive) are all correct.
+     */
+    public double spanConfidence(int sequence, int start, int end)
+    {
+        int base = offsets[sequence];
+        return Math.min(1.0, Math.exp(startFactor[base + start] + endFactor[base + end]));
+    }
+
+    /**
+     * Collects the entity spans of the current batch.
+     *
+     * @param threshold only spans with a confidence below this are returned;
+     * pass anything above 1 for all spans
+     */
+    public List<Span> spans(double threshold)
+    {
+        List<Span> ret = new ArrayList<Span>();
+        for (int i = 0; i < batchSize; i++)
+        {
+            int length = length(i);
+            int start = -1;
+            String type = null;
+            for (int ip = 0; ip <= length; ip++)
+            {
+                String label = ip < length ? label(i, ip) : null;
+                boolean continues = label != null && type != null
+                        && label.startsWith("I-") && label.substring(2).equals(type);
+                if (start >= 0 && !continues)
+                {
+                    double c = spanConfidence(i, start, ip - 1);
+                    if (c < threshold)
+                        ret.add(new Span(i, start, ip - 1, type, c));
+                    start = -1;
+                    type = null;
+                }
+                if (label != null && start < 0 && (label.startsWith("B-") || label.startsWith("I-")))
+                {
+                    start = ip;
+                    type = label.substring(2);
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -1,6 +1,3 @@
-import java.io.*;
-import java.util.StringTokenizer;
-
 /**
  * Created with IntelliJ IDEA.
  * User: sinanasa
@@ -13,38 +10,22 @@ public class NETPreProcessor {
     private NETPreProcessor() {
     }
 
+    /**
+     * Adds the standard features of {@link FeaturePipeline} to a file of
+     * "token label" lines. Window features are left to the tagger's
+     * <code>--window</code> option, which makes them in the pipe.
+     *
+     * Usage: NETPreProcessor [input_file output_file]
+     */
     public static void main (String[] args) throws Exception
     {
-        int lineCount = 0;
-        String tkn;
-        try {
-            BufferedReader in = new BufferedReader(new FileReader("/Users/sinanasa/anlp/name_data/train_nwire2"));
-            // Create file
-            FileWriter fstream = new FileWriter("/Users/sinanasa/anlp/name_data/train_nwire2_cap");
-            BufferedWriter out = new BufferedWriter(fstream);
-            String str = null;
-            while ((str = in.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer(str);
-                if (st.hasMoreTokens()) {
-                    tkn = st.nextToken();
-                    if (tkn != null) {
-                        System.out.println(tkn);
-                        if (Character.isUpperCase(tkn.charAt(0))) out.write("CAPITALIZED ");
-                        else out.write("lowercase ");
-                        if (st.hasMoreTokens()) tkn = st.nextToken();
-                        out.write(tkn+"\n");
-                    }
-                }
-                else {
-                    System.out.println("");
-                    out.write("\n");
-                }
-                lineCount++;
-            }
-            in.close();
-            out.close();
-            System.out.println(lineCount);
-        } catch (IOException e) {
+        String input = "/Users/sinanasa/anlp/name_data/train_nwire2";
+        String output = "/Users/sinanasa/anlp/name_data/train_nwire2_cap";
+        if (args.length == 2) {
+            input = args[0];
+            output = args[1];
+        }
+        FeaturePipeline.run(new FeaturePipeline(FeaturePipeline.extractors(3, 0), true), input, output,
+                Runtime.getRuntime().availableProcessors());
     }
 }
-}
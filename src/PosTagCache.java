@@ -0,0 +1,270 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of the POS tags of sentences, for one tagger model.
+ *
+ * The cache file is append-only: a header holding a hash of the model file,
+ * then records that either define the next tag id or give the tag ids of a
+ * sentence, keyed by a 64-bit hash of its tokens. The file is memory-mapped
+ * and indexed once when opened; a cache for another model is started over.
+ * Recently used sentences are also kept decoded in an LRU map.
+ * Methods are synchronized so tagging threads can share one cache.
+ */
+public class PosTagCache {
+
+    private static final int MAGIC = 0x504f5331; // "POS1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+
+    private static final byte TAG = 0;
+    private static final byte SENTENCE = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private long end;
+
+    // sentence hash -> offset of its record
+    private final LongIntMap index = new LongIntMap(1024);
+    private final Corpus.Dictionary tags = new Corpus.Dictionary();
+    private final Map<Long, String[]> recent;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param cacheFile created if it does not exist
+     * @param model the tagger model file the tags come from
+     * @param lruSize number of sentences kept decoded
+     */
+    public PosTagCache(File cacheFile, File model, final int lruSize) throws IOException {
+        recent = new LinkedHashMap<Long, String[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+                return size() > lruSize;
+            }
+        };
+        long modelHash = hashFile(model);
+        file = new RandomAccessFile(cacheFile, "rw");
+        channel = file.getChannel();
+        end = channel.size();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        if (end >= HEADER)
+            channel.read(header, 0);
+        header.flip();
+        if (end < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION
+                || header.getLong() != modelHash) {
+            channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putLong(modelHash).flip();
+            channel.write(header, 0);
+            end = HEADER;
+        }
+        // a file longer than a mapping can be is cut back by scan()
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(end, Integer.MAX_VALUE));
+        scan();
+    }
+
+    /**
+     * Indexes the records of the file, dropping a last record cut short
+     * and anything past the first 2 GB.
+     */
+    private void scan() throws IOException {
+        int pos = HEADER;
+        int limit = map.limit();
+        while (pos < limit) {
+            int start = pos;
+            byte type = map.get(pos++);
+            if (type == TAG && pos + 2 <= limit) {
+                int length = map.getShort(pos) & 0xffff;
+                pos += 2;
+                if (pos + length > limit) {
+                    pos = start;
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++)
+                    bytes[i] = map.get(pos + i);
+                tags.lookup(new String(bytes, UTF8));
+                pos += length;
+            } else if (type == SENTENCE && pos + 12 <= limit) {
+                long hash = map.getLong(pos);
+                int n = map.getInt(pos + 8);
+                if (n < 0 || pos + 12 + 2L * n > limit) {
+                    pos = start;
+                    break;
+                }
+                index.put(hash, start);
+                pos += 12 + 2 * n;
+            } else {
+                pos = start;
+                break;
+            }
+        }
+        if (pos < end) {
+            channel.truncate(pos);
+            end = pos;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+    }
+
+    /**
+     * @return the cached tags of a sentence, or <code>null</code>
+     */
+    public String[] get(Corpus.Sentence sentence) throws IOException {
+        return get(hash(sentence), sentence.size());
+    }
+
+    /**
+     * @return the cached tags of a sentence, or <code>null</code>
+     */
+    public String[] get(String[] tokens) throws IOException {
+        return get(hash(tokens), tokens.length);
+    }
+
+    private synchronized String[] get(long hash, int size) throws IOException {
+        String[] ret = recent.get(hash);
+        if (ret == null) {
+            int offset = index.get(hash, -1);
+            if (offset >= 0) {
+                if (offset >= map.limit()) // appended since the file was mapped
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                int n = map.getInt(offset + 9);
+                if (n == size) {
+                    ret = new String[n];
+                    for (int i = 0; i < n; i++)
+                        ret[i] = tags.word(map.getShort(offset + 13 + 2 * i) & 0xffff);
+                    recent.put(hash, ret);
+                }
+            }
+        }
+        if (ret == null)
+            misses++;
+        else
+            hits++;
+        return ret;
+    }
+
+    /**
+     * Appends the tags of a sentence to the cache.
+     */
+    public void put(Corpus.Sentence sentence, String[] sentenceTags) throws IOException {
+        put(hash(sentence), sentenceTags);
+    }
+
+    /**
+     * Appends the tags of a sentence to the cache.
+     */
+    public void put(String[] tokens, String[] sentenceTags) throws IOException {
+        put(hash(tokens), sentenceTags);
+    }
+
+    private synchronized void put(long hash, String[] sentenceTags) throws IOException {
+        if (index.get(hash, -1) >= 0)
+            return;
+        if (tags.size() + sentenceTags.length > 0x10000)
+            return; // tag ids might not fit in a short; leave the sentence uncached
+        // offsets are ints and the file is mapped whole, so it stays under 2 GB;
+        // bound the record by 3 UTF-8 bytes a char before any tag is added
+        long bound = end + 13 + 2L * sentenceTags.length;
+        for (String tag : sentenceTags)
+            if (tags.get(tag) < 0)
+                bound += 3 + 3L * tag.length();
+        if (bound > Integer.MAX_VALUE)
+            return; // leave the sentence uncached
+        int size = 13 + 2 * sentenceTags.length;
+        byte[][] newTags = new byte[sentenceTags.length][];
+        int numNew = 0;
+        for (String tag : sentenceTags) {
+            if (tags.get(tag) < 0) {
+                byte[] bytes = tag.getBytes(UTF8);
+                newTags[numNew++] = bytes;
+                size += 3 + bytes.length;
+                tags.lookup(tag);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < numNew; i++)
+            buf.put(TAG).putShort((short)newTags[i].length).put(newTags[i]);
+        int offset = (int)end + buf.position();
+        buf.put(SENTENCE).putLong(hash).putInt(sentenceTags.length);
+        for (String tag : sentenceTags)
+            buf.putShort((short)tags.get(tag));
+        buf.flip();
+        while (buf.hasRemaining())
+            end += channel.write(buf, end);
+        index.put(hash, offset);
+        recent.put(hash, sentenceTags.clone());
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the tokens of a sentence.
+     */
+    static long hash(Corpus.Sentence sentence) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sentence.size(); i++)
+            h = hash(h, sentence.token(i));
+        return h;
+    }
+
+    static long hash(String[] tokens) {
+        long h = 0xcbf29ce484222325L;
+        for (String token : tokens)
+            h = hash(h, token);
+        return h;
+    }
+
+    private static long hash(long h, String token) {
+        for (int j = 0; j < token.length(); j++) {
+            h ^= token.charAt(j);
+            h *= 0x100000001b3L;
+        }
+        // separator, so that "a b" and "ab" differ
+        h ^= 0xffff;
+        h *= 0x100000001b3L;
+        return h;
+    }
+
+    static long hashFile(File input) throws IOException {
+        long h = 0xcbf29ce484222325L;
+        byte[] buf = new byte[1 << 16];
+        InputStream in = new FileInputStream(input);
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    h ^= buf[i] & 0xff;
+                    h *= 0x100000001b3L;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return h;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.SumLatticeDefault;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.LineGroupIterator;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+/**
+ * Compares decoding with a trained {@link CRF} against its double and
+ * single-precision {@link DenseCRF} copies: model size, decoding time,
+ * token accuracy and agreement of the log partition function. It also
+ * times {@link MarginalDecoder} against plain Viterbi on the same lattice.
+ * <p>
+ * Training always runs in double precision inside MALLET's optimizers, so
+ * the effect of single precision on convergence is measured through the
+ * log-likelihood it assigns to held-out data rather than by training in
+ * <code>float</code>.
+ * <p>
+ * Usage: PrecisionBenchmark model-file test-file [repeats]
+ */
+public class PrecisionBenchmark
+{
+    private PrecisionBenchmark()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage:");
+            System.out.println("args[0] model file saved by Tagger");
+            System.out.println("args[1] labeled test file");
+            System.out.println("args[2] number of timed repetitions (default 5)");
+            System.exit(-1);
+        }
+        ObjectInputStream s = new ObjectInputStream(new FileInputStream(args[0]));
+        CRF crf = (CRF)s.readObject();
+        s.close();
+        int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Pipe p = crf.getInputPipe();
+        p.setTargetProcessing(true);
+        InstanceList testData = new InstanceList(p);
+        testData.addThruPipe(new LineGroupIterator(new FileReader(args[1]), Pattern.compile("^\\s*$"), true));
+
+        DenseCRF dense = new DenseCRF(crf, false);
+        DenseCRF single = new DenseCRF(crf, true);
+        System.out.println("Instances: " + testData.size());
+        System.out.println("Compact model size (double): " + dense.sizeInBytes());
+        System.out.println("Compact model size (float): " + single.sizeInBytes());
+
+        DenseLattice denseLattice = new DenseLattice(dense);
+        DenseLattice singleLattice = new DenseLattice(single);
+
+        // warm up all three decoders before timing them
+        decode(crf, null, testData);
+        decode(null, denseLattice, testData);
+        decode(null, singleLattice, testData);
+
+        long start = System.nanoTime();
+        double accuracy = 0;
+        for (int r = 0; r < repeats; r++)
+            accuracy = decode(crf, null, testData);
+        report("MALLET", System.nanoTime() - start, repeats, accuracy);
+
+        start = System.nanoTime();
+        for (int r = 0; r < repeats; r++)
+            accuracy = decode(null, denseLattice, testData);
+        report("Dense double", System.nanoTime() - start, repeats, accuracy);
+
+        start = System.nanoTime();
+        for (int r = 0; r < repeats; r++)
+            accuracy = decode(null, singleLattice, testData);
+        report("Dense float", System.nanoTime() - start, repeats, accuracy);
+
+        // Viterbi plus token and span confidences, against plain Viterbi on the same inputs
+        MarginalDecoder marginals = new MarginalDecoder(new DenseLattice(dense));
+        List<Sequence> inputs = new ArrayList<Sequence>();
+        for (Instance inst : testData)
+            inputs.add((Sequence)inst.getData());
+        decodeMarginals(marginals, inputs);
+        start = System.nanoTime();
+        for (int r = 0; r < repeats; r++)
+            for (Sequence input : inputs)
+                denseLattice.bestOutputSequence(input);
+        long viterbi = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < repeats; r++)
+            decodeMarginals(marginals, inputs);
+        long marginal = System.nanoTime() - start;
+        System.out.println("Marginal decoding (double): " + (marginal / 1000000.0 / repeats)
+                + " ms per pass, " + ((double)marginal / viterbi) + " times dense double Viterbi");
+
+        double maxDiff = 0.0, maxDenseDiff = 0.0;
+        double logZ = 0.0, logZSingle = 0.0;
+        for (Instance inst : testData)
+        {
+            Sequence input = (Sequence)inst.getData();
+            double reference = new SumLatticeDefault(crf, input).getTotalWeight();
+            denseLattice.setInput(input);
+            singleLattice.setInput(input);
+            double d = denseLattice.forward();
+            double f = singleLattice.forward();
+            maxDenseDiff = Math.max(maxDenseDiff, Math.abs(d - reference));
+            maxDiff = Math.max(maxDiff, Math.abs(f - d));
+            logZ += d;
+            logZSingle += f;
+        }
+        System.out.println("Max |log Z| difference, dense double vs MALLET: " + maxDenseDiff);
+        System.out.println("Max |log Z| difference, float vs double: " + maxDiff);
+        System.out.println("Total log Z (double): " + logZ);
+        System.out.println("Total log Z (float): " + logZSingle);
+    }
+
+    /**
+     * Decodes every instance with either the MALLET model or a dense lattice.
+     *
+     * @return token accuracy against the instance targets
+     */
+    private static double decode(CRF crf, DenseLattice lattice, InstanceList instances)
+    {
+        int correct = 0, total = 0;
+        for (Instance inst : instances)
+        {
+            Sequence input = (Sequence)inst.getData();
+            Sequence gold = (Sequence)inst.getTarget();
+            Sequence output = crf != null ? crf.transduce(input) : lattice.bestOutputSequence(input);
+            for (int i = 0; i < gold.size(); i++)
+            {
+                if (gold.get(i).toString().equals(output.get(i).toString()))
+                    correct++;
+                total++;
+            }
+        }
+        return total == 0 ? 0.0 : (double)correct / total;
+    }
+
+    private static void decodeMarginals(MarginalDecoder decoder, List<Sequence> inputs)
+    {
+        for (int i = 0; i < inputs.size(); i += MARGINAL_BATCH)
+        {
+            decoder.decode(inputs.subList(i, Math.min(inputs.size(), i + MARGINAL_BATCH)));
+            decoder.spans(2.0);
+        }
+    }
+
+    private static final int MARGINAL_BATCH = 64;
+
+    private static void report(String name, long nanos, int repeats, double accuracy)
+    {
+        System.out.println(name + ": " + (nanos / 1000000.0 / repeats) + " ms per pass, token accuracy " + accuracy);
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * a persistent cache of the Scores of answer files, for rescoring a dir after only a few files changed
+ *
+ * each answer file is keyed by its path and checked against the SHA-1 content hashes of itself and its gold standard;
+ * the hashes are only recomputed when the size or modification time of a file differs from the one recorded,
+ * or when the file was modified too close to the time it was recorded for its modification time to be trusted.
+ * a cache file that is missing, unreadable or from another version is treated as empty
+ */
+public class ScoreCache
+{
+    private static final int MAGIC = 0x53434331; // "SCC1"
+    // bump when the layout of the file or of Scores changes
+    private static final int VERSION = 2;
+
+    // modification times closer than this to the time they were recorded may hide a later change
+    private static final long RACY_MILLIS = 2000;
+
+    static class Entry
+    {
+        long gold_size;
+        long gold_time;
+        byte[] gold_hash;
+        long ans_size;
+        long ans_time;
+        byte[] ans_hash;
+        long recorded;
+        Scorer_Independent.Scores scores;
+    }
+
+    private final File file;
+    // absolute path of the answer file --> entry
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean dirty = false;
+
+    private int num_hits = 0;
+    private int num_misses = 0;
+
+    private ScoreCache(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * load a cache file, or start an empty cache if it can't be read
+     * @param file
+     * @return
+     */
+    public static ScoreCache load(File file)
+    {
+        ScoreCache cache = new ScoreCache(file);
+        if(!file.isFile())
+        {
+            return cache;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    return cache;
+                }
+                int size = in.readInt();
+                for(int i = 0; i < size; i++)
+                {
+                    String path = in.readUTF();
+                    Entry entry = new Entry();
+                    entry.gold_size = in.readLong();
+                    entry.gold_time = in.readLong();
+                    entry.gold_hash = readHash(in);
+                    entry.ans_size = in.readLong();
+                    entry.ans_time = in.readLong();
+                    entry.ans_hash = readHash(in);
+                    entry.recorded = in.readLong();
+                    entry.scores = Scorer_Independent.Scores.read(in);
+                    cache.entries.put(path, entry);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Ignoring unreadable score cache " + file.getAbsolutePath() + ": " + e);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    private static byte[] readHash(DataInputStream in) throws IOException
+    {
+        byte[] hash = new byte[in.readUnsignedByte()];
+        in.readFully(hash);
+        return hash;
+    }
+
+    /**
+     * write the cache back to its file if anything changed, through a temporary file so a crash keeps the old one
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException
+    {
+        if(!dirty)
+        {
+            return;
+        }
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for(Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.gold_size);
+                out.writeLong(entry.gold_time);
+                out.writeByte(entry.gold_hash.length);
+                out.write(entry.gold_hash);
+                out.writeLong(entry.ans_size);
+                out.writeLong(entry.ans_time);
+                out.writeByte(entry.ans_hash.length);
+                out.write(entry.ans_hash);
+                out.writeLong(entry.recorded);
+                entry.scores.write(out);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!temp.renameTo(file))
+        {
+            // renameTo doesn't replace an existing file on every platform
+            file.delete();
+            if(!temp.renameTo(file))
+            {
+                throw new IOException("Can't replace " + file.getAbsolutePath());
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * get the scores of an answer file against its gold standard, scoring it only if it isn't cached;
+     * may be called from several threads
+     * @param goldFile
+     * @param ansFile
+     * @return the scores of the document, shared with the cache so they must not be modified
+     * @throws IOException
+     */
+    public Scorer_Independent.Scores getScores(File goldFile, File ansFile) throws IOException
+    {
+        String path = ansFile.getAbsolutePath();
+        Entry cached;
+        synchronized(this)
+        {
+            cached = entries.get(path);
+        }
+
+        Entry entry = new Entry();
+        entry.recorded = System.currentTimeMillis();
+        entry.gold_size = goldFile.length();
+        entry.gold_time = goldFile.lastModified();
+        entry.ans_size = ansFile.length();
+        entry.ans_time = ansFile.lastModified();
+
+        if(cached != null && sameStat(cached, entry))
+        {
+            hit();
+            return cached.scores;
+        }
+
+        entry.gold_hash = hash(goldFile);
+        entry.ans_hash = hash(ansFile);
+        if(cached != null && Arrays.equals(cached.gold_hash, entry.gold_hash) && Arrays.equals(cached.ans_hash, entry.ans_hash))
+        {
+            // touched but unchanged: keep the scores under the new times
+            entry.scores = cached.scores;
+            hit();
+        }
+        else
+        {
+            entry.scores = new Scorer_Independent.Scores();
+            Scorer_Independent.getScoreDocument(goldFile, ansFile, entry.scores);
+            synchronized(this)
+            {
+                num_misses++;
+            }
+        }
+        synchronized(this)
+        {
+            entries.put(path, entry);
+            dirty = true;
+        }
+        return entry.scores;
+    }
+
+    private static boolean sameStat(Entry cached, Entry current)
+    {
+        return cached.gold_size == current.gold_size && cached.gold_time == current.gold_time
+                && cached.ans_size == current.ans_size && cached.ans_time == current.ans_time
+                && cached.gold_time < cached.recorded - RACY_MILLIS && cached.ans_time < cached.recorded - RACY_MILLIS;
+    }
+
+    private synchronized void hit()
+    {
+        num_hits++;
+    }
+
+    /**
+     * @return the number of documents whose scores came from the cache
+     */
+    public synchronized int getHitNum()
+    {
+        return num_hits;
+    }
+
+    /**
+     * @return the number of documents that were scored
+     */
+    public synchronized int getMissNum()
+    {
+        return num_misses;
+    }
+
+    static byte[] hash(File input) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        byte[] buf = new byte[1 << 16];
+        InputStream in = new FileInputStream(input);
+        try
+        {
+            int n;
+            while((n = in.read(buf)) > 0)
+            {
+                digest.update(buf, 0, n);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return digest.digest();
+    }
+}
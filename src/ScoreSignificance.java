@@ -0,0 +1,345 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * bootstrap confidence intervals and paired permutation tests over the per-document counts of Scorer_Independent
+ *
+ * the correct/answer/gold counts of every system, document and entity type are kept in one flat int array;
+ * F_1 is computed from summed counts as 2 * correct / (answer + gold), slot 0 standing for all types together.
+ * samples are drawn in fixed-size batches on a thread pool, each batch with its own Random seeded from a master seed,
+ * so the results depend on the seed but not on the number of threads
+ */
+public class ScoreSignificance
+{
+    private static final int CORRECT = 0;
+    private static final int ANS = 1;
+    private static final int GOLD = 2;
+
+    // samples drawn by one task
+    private static final int BATCH = 256;
+
+    private final int num_sys;
+    private final int num_docs;
+    private final int num_types;
+    // counts[((sys * num_docs + doc) * num_types + type) * 3 + CORRECT/ANS/GOLD], type 0 is the total
+    private final int[] counts;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param doc_scores: for each document, one Scores per system, as returned by Scorer_Independent.getDocumentScores
+     */
+    public ScoreSignificance(List<Scorer_Independent.Scores[]> doc_scores)
+    {
+        num_docs = doc_scores.size();
+        num_sys = num_docs == 0 ? 0 : doc_scores.get(0).length;
+        num_types = Scorer_Independent.getTypeNum();
+        counts = new int[num_sys * num_docs * num_types * 3];
+        for(int doc = 0; doc < num_docs; doc++)
+        {
+            for(int sys = 0; sys < num_sys; sys++)
+            {
+                Scorer_Independent.Scores scores = doc_scores.get(doc)[sys];
+                int base = (sys * num_docs + doc) * num_types * 3;
+                addTable(scores.tab_num_correct, base + CORRECT);
+                addTable(scores.tab_num_ans, base + ANS);
+                addTable(scores.tab_num_gold, base + GOLD);
+            }
+        }
+    }
+
+    private void addTable(Map<String, Double> tab, int offset)
+    {
+        for(Map.Entry<String, Double> e : tab.entrySet())
+        {
+            int num = (int) Math.round(e.getValue());
+            counts[offset + Scorer_Independent.getTypeId(e.getKey()) * 3] += num;
+            counts[offset] += num;
+        }
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getTypeNum()
+    {
+        return num_types;
+    }
+
+    /**
+     * @param type
+     * @return whether any system or gold standard has an entity of a type
+     */
+    public boolean isUsed(int type)
+    {
+        for(int i = type * 3; i < counts.length; i += num_types * 3)
+        {
+            if(counts[i + ANS] > 0 || counts[i + GOLD] > 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param type: an interned type id, or 0 for all types
+     * @return the name of a type slot
+     */
+    public static String getTypeName(int type)
+    {
+        return type == 0 ? "All" : Scorer_Independent.getTypeName(type);
+    }
+
+    private static double getF1(int[] sums, int type)
+    {
+        int denominator = sums[type * 3 + ANS] + sums[type * 3 + GOLD];
+        return denominator == 0 ? 0.0 : 2.0 * sums[type * 3 + CORRECT] / denominator;
+    }
+
+    private void addDocument(int[] sums, int sys, int doc)
+    {
+        int base = (sys * num_docs + doc) * num_types * 3;
+        for(int i = 0; i < num_types * 3; i++)
+        {
+            sums[i] += counts[base + i];
+        }
+    }
+
+    /**
+     * @return the F_1 of a system on all documents, for each type slot
+     */
+    public double[] getF1(int sys)
+    {
+        int[] sums = new int[num_types * 3];
+        for(int doc = 0; doc < num_docs; doc++)
+        {
+            addDocument(sums, sys, doc);
+        }
+        double[] ret = new double[num_types];
+        for(int type = 0; type < num_types; type++)
+        {
+            ret[type] = getF1(sums, type);
+        }
+        return ret;
+    }
+
+    /**
+     * percentile bootstrap confidence intervals of F_1, resampling documents with replacement
+     * @param sys
+     * @param samples: number of bootstrap samples
+     * @param level: e.g. 0.95
+     * @param seed
+     * @return for each type slot, the lower and upper bound of the interval
+     * @throws IOException
+     */
+    public double[][] bootstrap(final int sys, int samples, double level, long seed) throws IOException
+    {
+        // f1[type * samples + sample]
+        final double[] f1 = new double[num_types * samples];
+        final int total = samples;
+        runBatches(samples, seed, new Batch()
+        {
+            public void run(int from, int to, Random random)
+            {
+                int[] sums = new int[num_types * 3];
+                for(int sample = from; sample < to; sample++)
+                {
+                    Arrays.fill(sums, 0);
+                    for(int i = 0; i < num_docs; i++)
+                    {
+                        addDocument(sums, sys, random.nextInt(num_docs));
+                    }
+                    for(int type = 0; type < num_types; type++)
+                    {
+                        f1[type * total + sample] = getF1(sums, type);
+                    }
+                }
+            }
+        });
+
+        double[][] ret = new double[num_types][2];
+        int low = (int) Math.floor((1.0 - level) / 2 * (samples - 1));
+        int high = (int) Math.ceil((1.0 + level) / 2 * (samples - 1));
+        for(int type = 0; type < num_types; type++)
+        {
+            Arrays.sort(f1, type * samples, (type + 1) * samples);
+            ret[type][0] = f1[type * samples + low];
+            ret[type][1] = f1[type * samples + high];
+        }
+        return ret;
+    }
+
+    /**
+     * paired approximate randomization test of the difference in F_1 between two systems:
+     * in every sample the two systems' counts on each document are swapped with probability 1/2
+     * @param sys_a
+     * @param sys_b
+     * @param samples: number of random permutations
+     * @param seed
+     * @return for each type slot, the two-sided p-value
+     * @throws IOException
+     */
+    public double[] permutationTest(final int sys_a, final int sys_b, int samples, long seed) throws IOException
+    {
+        double[] f1_a = getF1(sys_a);
+        double[] f1_b = getF1(sys_b);
+        final double[] observed = new double[num_types];
+        for(int type = 0; type < num_types; type++)
+        {
+            // tolerate rounding when comparing permuted differences to the observed one
+            observed[type] = Math.abs(f1_a[type] - f1_b[type]) - 1e-12;
+        }
+
+        // exceed[batch * num_types + type]: permutations at least as extreme as observed
+        final int[] exceed = new int[((samples + BATCH - 1) / BATCH) * num_types];
+        runBatches(samples, seed, new Batch()
+        {
+            public void run(int from, int to, Random random)
+            {
+                int[] sums_a = new int[num_types * 3];
+                int[] sums_b = new int[num_types * 3];
+                int offset = from / BATCH * num_types;
+                for(int sample = from; sample < to; sample++)
+                {
+                    Arrays.fill(sums_a, 0);
+                    Arrays.fill(sums_b, 0);
+                    for(int doc = 0; doc < num_docs; doc++)
+                    {
+                        boolean swap = random.nextBoolean();
+                        addDocument(sums_a, swap ? sys_b : sys_a, doc);
+                        addDocument(sums_b, swap ? sys_a : sys_b, doc);
+                    }
+                    for(int type = 0; type < num_types; type++)
+                    {
+                        if(Math.abs(getF1(sums_a, type) - getF1(sums_b, type)) >= observed[type])
+                        {
+                            exceed[offset + type]++;
+                        }
+                    }
+                }
+            }
+        });
+
+        double[] ret = new double[num_types];
+        for(int type = 0; type < num_types; type++)
+        {
+            int num = 0;
+            for(int i = type; i < exceed.length; i += num_types)
+            {
+                num += exceed[i];
+            }
+            ret[type] = (num + 1.0) / (samples + 1.0);
+        }
+        return ret;
+    }
+
+    /**
+     * samples [from, to) of one batch
+     */
+    private interface Batch
+    {
+        void run(int from, int to, Random random);
+    }
+
+    private void runBatches(int samples, long seed, final Batch batch) throws IOException
+    {
+        if(samples < 1)
+        {
+            throw new IllegalArgumentException("Need at least one sample, got " + samples);
+        }
+        Random master = new Random(seed);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for(int start = 0; start < samples; start += BATCH)
+            {
+                final int from = start;
+                final int to = Math.min(samples, start + BATCH);
+                final Random random = new Random(master.nextLong());
+                results.add(pool.submit(new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        batch.run(from, to, random);
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Object> result : results)
+            {
+                Scorer_Independent.getResult(result);
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * print the F_1 and its bootstrap confidence interval of every system,
+     * and the p-value of every system against the first one
+     * args[0] gold standard dir
+     * args[1] number of samples
+     * args[2..n] system output dirs
+     * @param args
+     * @throws IOException
+     */
+    static public void main(String[] args) throws IOException
+    {
+        if(args.length < 3)
+        {
+            System.out.println("Bootstrap confidence intervals and significance of name tagging scores");
+            System.out.println("Usage:");
+            System.out.println("args[0] gold standard dir");
+            System.out.println("args[1] number of samples, e.g. 10000");
+            System.out.println("args[2..n] system output dirs, the others are compared to the first");
+            System.exit(-1);
+        }
+        File goldDir = new File(args[0]);
+        int samples = Integer.parseInt(args[1]);
+        File[] outputDirs = new File[args.length - 2];
+        for(int i = 2; i < args.length; i++)
+        {
+            outputDirs[i - 2] = new File(args[i]);
+        }
+        List<Scorer_Independent.Scores[]> doc_scores = Scorer_Independent.getDocumentScores(goldDir, outputDirs,
+                Runtime.getRuntime().availableProcessors());
+        ScoreSignificance significance = new ScoreSignificance(doc_scores);
+        System.out.println("Number of docs: " + doc_scores.size());
+
+        for(int sys = 0; sys < outputDirs.length; sys++)
+        {
+            System.out.println("System: " + outputDirs[sys].getName());
+            double[] f1 = significance.getF1(sys);
+            double[][] interval = significance.bootstrap(sys, samples, 0.95, 0);
+            double[] p = sys > 0 ? significance.permutationTest(0, sys, samples, 0) : null;
+            for(int type = 0; type < significance.getTypeNum(); type++)
+            {
+                if(!significance.isUsed(type))
+                {
+                    continue;
+                }
+                String line = String.format("%-12s F_1 %.4f 95%% CI [%.4f, %.4f]", getTypeName(type), f1[type], interval[type][0], interval[type][1]);
+                if(p != null)
+                {
+                    line += String.format(" p vs %s %.4f", outputDirs[0].getName(), p[type]);
+                }
+                System.out.println(line);
+            }
+        }
+    }
+}
@@ -1,14 +1,26 @@
-import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
-import java.util.Vector;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class is scorer for name tagging output, please refer to the comment of main function for usage
@@ -19,29 +31,110 @@ public class Scorer_Independent
 {
     public static final String NONE_ENTITY = "None";
 
+    // interned entity types, NONE_ENTITY has id 0
+    private static final Map<String, Integer> type_ids = new HashMap<String, Integer>();
+    // replaced by a longer copy when a type is added, so that names are read without locking
+    private static volatile String[] type_names = new String[0];
+
+    static
+    {
+        getTypeId(NONE_ENTITY);
+    }
+
+    /**
+     * get the id of an entity type, assigning the next free id to a new type
+     * @param type
+     * @return
+     */
+    public static synchronized int getTypeId(String type)
+    {
+        Integer id = type_ids.get(type);
+        if(id == null)
+        {
+            id = type_names.length;
+            type = type.intern();
+            String[] names = Arrays.copyOf(type_names, id + 1);
+            names[id] = type;
+            type_names = names;
+            type_ids.put(type, id);
+        }
+        return id;
+    }
+
+    public static String getTypeName(int id)
+    {
+        return type_names[id];
+    }
+
+    public static int getTypeNum()
+    {
+        return type_names.length;
+    }
+
+    /**
+     * get the id of the entity type of a label such as B-PER, the type of "O" being NONE_ENTITY
+     * @param label
+     * @return
+     */
+    public static int getLabelTypeId(String label)
+    {
+        if(label.length() > 2)
+        {
+            return getTypeId(label.substring(2, label.length()));
+        }
+        return getTypeId(NONE_ENTITY);
+    }
+
+    /**
+     * a named entity is a span [start, end) of the tokens of its sentence,
+     * together with its precomputed character offsets in the sentence and a hash of its tokens
+     */
     public static class NamedEntity
     {
         public boolean correct; // indicates correct or not
 
-        public Vector<String> entity;
-        public String type;
+        public final String type;
+        public final int typeId;
+
+        // set by SentenceBuilder when the sentence is finished
+        private String[] tokens;
+        int start;
+        int end;
+        int charStart;
+        int charEnd;
+        private int hash;
+
+        NamedEntity(int typeId, int start)
+        {
+            this.typeId = typeId;
+            this.type = getTypeName(typeId);
+            this.start = start;
+            this.end = start;
+        }
+
+        /**
+         * @return the number of tokens of the entity
+         */
+        public int size()
+        {
+            return end - start;
+        }
 
-        public NamedEntity(String type)
+        public String getToken(int i)
         {
-            this.type = type;
-            this.entity = new Vector<String>();
+            return tokens[start + i];
         }
 
-        public void addToken(String token)
+        public List<String> getTokens()
         {
-            this.entity.add(token);
+            return Arrays.asList(tokens).subList(start, end);
         }
 
         @Override
         public String toString()
         {
             String ret = "";
-            ret += entity + " ";
+            ret += getTokens() + " ";
 
             ret += this.type;
             return ret;
@@ -53,7 +146,7 @@ public class Scorer_Independent
             if(obj instanceof NamedEntity)
             {
                 NamedEntity target = (NamedEntity) obj;
-                if(target.type.equals(this.type) && this.entity.equals(target.entity))
+                if(target.typeId == this.typeId && target.hash == this.hash && sameTokens(target, 0, 0))
                 {
                     return true;
                 }
@@ -61,17 +154,143 @@ public class Scorer_Independent
             return false;
         }
 
+        @Override
+        public int hashCode()
+        {
+            return 31 * hash + typeId;
+        }
+
+        /**
+         * compare the tokens of two entities, skipping the first few tokens of each
+         * @param target
+         * @param skip_this: tokens to skip at the start of this entity
+         * @param skip_target: tokens to skip at the start of target
+         * @return
+         */
+        boolean sameTokens(NamedEntity target, int skip_this, int skip_target)
+        {
+            int n = this.size() - skip_this;
+            if(n != target.size() - skip_target)
+            {
+                return false;
+            }
+            for(int i = 0; i < n; i++)
+            {
+                if(!this.tokens[this.start + skip_this + i].equals(target.tokens[target.start + skip_target + i]))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * get the total length of the entity
          * @return
          */
         public int length()
         {
-            int ret = 0;
-            for(String token : entity)
+            return charEnd - charStart;
+        }
+    }
+
+    /**
+     * collects the tokens and entities of one sentence,
+     * then fixes their token array, offsets and hashes when the sentence is finished
+     */
+    static class SentenceBuilder
+    {
+        private String[] tokens = new String[64];
+        private int size = 0;
+        private List<NamedEntity> sent = new ArrayList<NamedEntity>();
+        private NamedEntity last = null;
+
+        /**
+         * start a new entity with a token
+         * @param typeId
+         * @param token
+         */
+        void begin(int typeId, String token)
+        {
+            last = new NamedEntity(typeId, size);
+            sent.add(last);
+            append(token);
+        }
+
+        /**
+         * add a token by its label: B- and O start an entity, I- continues the last one
+         * @param label
+         * @param typeId: the type id of the label, see getLabelTypeId
+         * @param token
+         * @return false if the label is not a B/I/O label, in which case the token is skipped
+         */
+        boolean add(String label, int typeId, String token)
+        {
+            switch(label.charAt(0))
+            {
+                case 'B':
+                case 'O':
+                    begin(typeId, token);
+                    return true;
+                case 'I':
+                    append(token);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * add a token to the last entity of the sentence
+         * a token continuing an entity of an earlier sentence does not belong to any entity
+         * @param token
+         * @return false if there was no entity in this sentence to add to
+         */
+        boolean append(String token)
+        {
+            if(last == null)
+            {
+                return false;
+            }
+            if(size == tokens.length)
             {
-                ret += token.length();
+                tokens = Arrays.copyOf(tokens, size * 2);
             }
+            tokens[size++] = token;
+            last.end = size;
+            return true;
+        }
+
+        /**
+         * @return whether the sentence has an entity that an I- token can continue
+         */
+        boolean hasEntity()
+        {
+            return last != null;
+        }
+
+        List<NamedEntity> finish()
+        {
+            String[] sentence_tokens = Arrays.copyOf(tokens, size);
+            int offset = 0;
+            for(NamedEntity entity : sent)
+            {
+                entity.tokens = sentence_tokens;
+                entity.charStart = offset;
+                int h = 1;
+                for(int i = entity.start; i < entity.end; i++)
+                {
+                    offset += sentence_tokens[i].length();
+                    h = 31 * h + sentence_tokens[i].hashCode();
+                }
+                entity.charEnd = offset;
+                entity.hash = h;
+            }
+            List<NamedEntity> ret = sent;
+            Arrays.fill(tokens, 0, size, null);
+            size = 0;
+            sent = new ArrayList<NamedEntity>();
+            last = null;
             return ret;
         }
     }
@@ -87,32 +306,290 @@ public class Scorer_Independent
         public double false_positive = 0.0;
         public double num_missing = 0.0;
         public double num_type_error = 0.0;
+        public double num_boundary_error = 0.0;
         public double num_gold = 0.0;
         public double num_ans = 0.0;
 
         public int num_docs = 0;
 
+        // confusion[gold_type * confusion_types + ans_type] counts entities with the same span,
+        // gold type NONE_ENTITY (id 0) being a false positive and answer type NONE_ENTITY a missing entity
+        private int[] confusion = new int[0];
+        private int confusion_types = 0;
+
         public Scores()
         {
             tab_num_correct = new HashMap<String, Double>();
             tab_num_gold = new HashMap<String, Double>();
             tab_num_ans = new HashMap<String, Double>();
         }
+
+        /**
+         * add the counts of another Scores to this one
+         * merging is associative and commutative, so partial scores can be combined in any order
+         * @param other
+         */
+        public void merge(Scores other)
+        {
+            mergeTable(tab_num_correct, other.tab_num_correct);
+            mergeTable(tab_num_gold, other.tab_num_gold);
+            mergeTable(tab_num_ans, other.tab_num_ans);
+
+            num_correct += other.num_correct;
+            false_positive += other.false_positive;
+            num_missing += other.num_missing;
+            num_type_error += other.num_type_error;
+            num_boundary_error += other.num_boundary_error;
+            num_gold += other.num_gold;
+            num_ans += other.num_ans;
+
+            num_docs += other.num_docs;
+
+            for(int gold = 0; gold < other.confusion_types; gold++)
+            {
+                for(int ans = 0; ans < other.confusion_types; ans++)
+                {
+                    int num = other.confusion[gold * other.confusion_types + ans];
+                    if(num != 0)
+                    {
+                        addConfusion(gold, ans, num);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param gold_type: id of the gold type, 0 for none
+         * @param ans_type: id of the answer type, 0 for none
+         * @return the number of entities of gold_type that were answered as ans_type
+         */
+        public int getConfusion(int gold_type, int ans_type)
+        {
+            if(gold_type >= confusion_types || ans_type >= confusion_types)
+            {
+                return 0;
+            }
+            return confusion[gold_type * confusion_types + ans_type];
+        }
+
+        /**
+         * @return the number of type ids covered by the confusion matrix
+         */
+        public int getConfusionTypeNum()
+        {
+            return confusion_types;
+        }
+
+        void addConfusion(int gold_type, int ans_type, int num)
+        {
+            int needed = Math.max(gold_type, ans_type) + 1;
+            if(needed > confusion_types)
+            {
+                int size = Math.max(needed, getTypeNum());
+                int[] grown = new int[size * size];
+                for(int gold = 0; gold < confusion_types; gold++)
+                {
+                    System.arraycopy(confusion, gold * confusion_types, grown, gold * size, confusion_types);
+                }
+                confusion = grown;
+                confusion_types = size;
+            }
+            confusion[gold_type * confusion_types + ans_type] += num;
+        }
+
+        private static void mergeTable(Map<String, Double> tab, Map<String, Double> other)
+        {
+            for(Map.Entry<String, Double> e : other.entrySet())
+            {
+                Double temp = tab.get(e.getKey());
+                if(temp == null)
+                {
+                    temp = 0.0;
+                }
+                tab.put(e.getKey(), temp + e.getValue());
+            }
+        }
+
+        /**
+         * write the counts, so that read returns equal Scores
+         * @param out
+         * @throws IOException
+         */
+        public void write(DataOutput out) throws IOException
+        {
+            writeTable(out, tab_num_correct);
+            writeTable(out, tab_num_gold);
+            writeTable(out, tab_num_ans);
+
+            out.writeDouble(num_correct);
+            out.writeDouble(false_positive);
+            out.writeDouble(num_missing);
+            out.writeDouble(num_type_error);
+            out.writeDouble(num_boundary_error);
+            out.writeDouble(num_gold);
+            out.writeDouble(num_ans);
+
+            out.writeInt(num_docs);
+
+            // type ids are only valid within one run, so the matrix is written with the type names
+            out.writeInt(confusion_types);
+            for(int type = 0; type < confusion_types; type++)
+            {
+                out.writeUTF(getTypeName(type));
+            }
+            for(int i = 0; i < confusion_types * confusion_types; i++)
+            {
+                out.writeInt(confusion[i]);
+            }
+        }
+
+        public static Scores read(DataInput in) throws IOException
+        {
+            Scores scores = new Scores();
+            readTable(in, scores.tab_num_correct);
+            readTable(in, scores.tab_num_gold);
+            readTable(in, scores.tab_num_ans);
+
+            scores.num_correct = in.readDouble();
+            scores.false_positive = in.readDouble();
+            scores.num_missing = in.readDouble();
+            scores.num_type_error = in.readDouble();
+            scores.num_boundary_error = in.readDouble();
+            scores.num_gold = in.readDouble();
+            scores.num_ans = in.readDouble();
+
+            scores.num_docs = in.readInt();
+
+            int num_types = in.readInt();
+            int[] ids = new int[num_types];
+            for(int type = 0; type < num_types; type++)
+            {
+                ids[type] = getTypeId(in.readUTF());
+            }
+            for(int gold = 0; gold < num_types; gold++)
+            {
+                for(int ans = 0; ans < num_types; ans++)
+                {
+                    int num = in.readInt();
+                    if(num != 0)
+                    {
+                        scores.addConfusion(ids[gold], ids[ans], num);
+                    }
+                }
+            }
+            return scores;
+        }
+
+        private static void writeTable(DataOutput out, Map<String, Double> tab) throws IOException
+        {
+            out.writeInt(tab.size());
+            for(Map.Entry<String, Double> e : tab.entrySet())
+            {
+                out.writeUTF(e.getKey());
+                out.writeDouble(e.getValue());
+            }
+        }
+
+        private static void readTable(DataInput in, Map<String, Double> tab) throws IOException
+        {
+            int size = in.readInt();
+            for(int i = 0; i < size; i++)
+            {
+                String type = in.readUTF();
+                tab.put(getTypeName(getTypeId(type)), in.readDouble());
+            }
+        }
     }
 
+    /**
+     * a source of the entity lists of consecutive sentences
+     */
+    public interface SentenceSource
+    {
+        /**
+         * @return the entities of the next sentence, or null at the end
+         * @throws IOException
+         */
+        List<NamedEntity> nextSentence() throws IOException;
+    }
+
+    /**
+     * score a gold-standard file against an answer file,
+     * reading both sentence by sentence so that only one sentence of each is held in memory
+     * @param goldFile
+     * @param ansFile
+     * @param scores
+     * @throws IOException
+     */
     public static void getScoreDocument(File goldFile, File ansFile, Scores scores) throws IOException
     {
-        List<List<NamedEntity>> entityList_gold = readEntities(goldFile);
-        List<List<NamedEntity>> entityList_ans = readEntities(ansFile);
-        getScoreDocument(entityList_gold, entityList_ans, scores);
+        EntityReader reader_gold = new EntityReader(goldFile);
+        try
+        {
+            getScoreDocument(reader_gold, goldFile.getAbsolutePath(), ansFile, scores);
+        }
+        finally
+        {
+            reader_gold.close();
+        }
+    }
+
+    /**
+     * score already parsed gold-standard sentences against an answer file
+     * @param list_gold
+     * @param goldName: name of the gold standard in error messages
+     * @param ansFile
+     * @param scores
+     * @throws IOException
+     */
+    public static void getScoreDocument(final List<List<NamedEntity>> list_gold, String goldName, File ansFile, Scores scores) throws IOException
+    {
+        SentenceSource source_gold = new SentenceSource()
+        {
+            private int sent = 0;
+
+            public List<NamedEntity> nextSentence()
+            {
+                return sent < list_gold.size() ? list_gold.get(sent++) : null;
+            }
+        };
+        getScoreDocument(source_gold, goldName, ansFile, scores);
+    }
+
+    private static void getScoreDocument(SentenceSource source_gold, String goldName, File ansFile, Scores scores) throws IOException
+    {
+        EntityReader reader_ans = new EntityReader(ansFile);
+        try
+        {
+            scores.num_docs ++;
+            List<NamedEntity> sent_gold;
+            List<NamedEntity> sent_ans;
+            while((sent_gold = source_gold.nextSentence()) != null)
+            {
+                sent_ans = reader_ans.nextSentence();
+                if(sent_ans == null)
+                {
+                    throw new IOException(ansFile.getAbsolutePath() + " has fewer sentences than " + goldName);
+                }
+                scoreSentence(sent_gold, sent_ans, scores);
+            }
+            // extra answer sentences still count as answers
+            while((sent_ans = reader_ans.nextSentence()) != null)
+            {
+                countEntities(sent_ans, scores.tab_num_ans);
+                scores.num_ans += getNamedEntityNum(sent_ans);
+            }
+        }
+        finally
+        {
+            reader_ans.close();
+        }
     }
 
     public static void printScores(File goldFile, File ansFile) throws IOException
     {
-        List<List<NamedEntity>> entityList_gold = readEntities(goldFile);
-        List<List<NamedEntity>> entityList_ans = readEntities(ansFile);
         Scores scores = new Scores();
-        getScoreDocument(entityList_gold, entityList_ans, scores);
+        getScoreDocument(goldFile, ansFile, scores);
         printScores(scores);
     }
 
@@ -125,20 +602,46 @@ public class Scorer_Independent
      * @throws IOException
      */
     static public void evaluateDir(File outputDir, File goldDir) throws IOException
+    {
+        printScores(getScoreDir(outputDir, goldDir, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * evaluate a dir as evaluateDir does, reusing the scores of unchanged files from a cache file
+     * and writing the updated cache back
+     * @param outputDir
+     * @param goldDir
+     * @param cacheFile
+     * @throws IOException
+     */
+    static public void evaluateDir(File outputDir, File goldDir, File cacheFile) throws IOException
+    {
+        ScoreCache cache = ScoreCache.load(cacheFile);
+        Scores scores = getScoreDir(outputDir, goldDir, Runtime.getRuntime().availableProcessors(), cache);
+        cache.save();
+        printScores(scores);
+        System.out.println("Cached docs: " + cache.getHitNum() + ", rescored docs: " + cache.getMissNum());
+    }
+
+    /**
+     * list the output files under a dir, recursively
+     * @param outputDir
+     * @return
+     */
+    static List<File> listOutputFiles(File outputDir)
     {
         File[] files = outputDir.listFiles();
 
         Stack<File> children = new Stack<File>();
         children.addAll(Arrays.asList(files));
-        Scores total_scores = new Scores();
+        List<File> ret = new ArrayList<File>();
 
         while(!children.empty())
         {
             File child = children.pop();
             if(child.isFile() && !child.isHidden())
             {
-                File gold_child = new File(goldDir, child.getName());
-                getScoreDocument(gold_child, child, total_scores);
+                ret.add(child);
             }
             else
             {
@@ -146,7 +649,224 @@ public class Scorer_Independent
                 children.addAll(Arrays.asList(sub_files));
             }
         }
-        printScores(total_scores);
+        return ret;
+    }
+
+    /**
+     * score every output file under a dir against the gold-standard file of the same name,
+     * each file pair is scored into its own Scores on a thread pool and the results are merged
+     * @param outputDir
+     * @param goldDir
+     * @param threads
+     * @return the merged scores
+     * @throws IOException
+     */
+    static public Scores getScoreDir(File outputDir, File goldDir, int threads) throws IOException
+    {
+        return getScoreDir(outputDir, goldDir, threads, null);
+    }
+
+    /**
+     * score a dir as getScoreDir does, taking the scores of unchanged file pairs from a cache
+     * @param outputDir
+     * @param goldDir
+     * @param threads
+     * @param cache: may be null
+     * @return the merged scores
+     * @throws IOException
+     */
+    static public Scores getScoreDir(File outputDir, final File goldDir, int threads, final ScoreCache cache) throws IOException
+    {
+        List<File> files = listOutputFiles(outputDir);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            List<Future<Scores>> results = new ArrayList<Future<Scores>>();
+            for(final File child : files)
+            {
+                results.add(pool.submit(new Callable<Scores>()
+                {
+                    public Scores call() throws IOException
+                    {
+                        File gold_child = new File(goldDir, child.getName());
+                        if(cache != null)
+                        {
+                            return cache.getScores(gold_child, child);
+                        }
+                        Scores scores = new Scores();
+                        getScoreDocument(gold_child, child, scores);
+                        return scores;
+                    }
+                }));
+            }
+            Scores total_scores = new Scores();
+            for(Future<Scores> result : results)
+            {
+                total_scores.merge(getResult(result));
+            }
+            return total_scores;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * wait for a scoring task, passing on its IOException
+     * @param result
+     * @return
+     * @throws IOException
+     */
+    static <T> T getResult(Future<T> result) throws IOException
+    {
+        try
+        {
+            return result.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * evaluate several system output dirs against one gold-standard dir,
+     * and print their scores side by side
+     * @param goldDir
+     * @param outputDirs
+     * @throws IOException
+     */
+    static public void evaluateDirs(File goldDir, File[] outputDirs) throws IOException
+    {
+        Scores[] scores = getScoreDirs(goldDir, outputDirs, Runtime.getRuntime().availableProcessors());
+        String[] names = new String[outputDirs.length];
+        for(int i = 0; i < outputDirs.length; i++)
+        {
+            names[i] = outputDirs[i].getName();
+        }
+        printScoreTable(names, scores);
+    }
+
+    /**
+     * score several system output dirs against one gold-standard dir,
+     * each gold-standard file is parsed once and every system's answer for it is scored against the parsed copy;
+     * documents are scored in parallel on a thread pool;
+     * a system without an answer for a document misses all of its gold-standard entities
+     * @param goldDir
+     * @param outputDirs
+     * @param threads
+     * @return one Scores per output dir
+     * @throws IOException
+     */
+    static public Scores[] getScoreDirs(File goldDir, File[] outputDirs, int threads) throws IOException
+    {
+        Scores[] total_scores = new Scores[outputDirs.length];
+        for(int sys = 0; sys < outputDirs.length; sys++)
+        {
+            total_scores[sys] = new Scores();
+        }
+        for(Scores[] doc_scores : getDocumentScores(goldDir, outputDirs, threads))
+        {
+            for(int sys = 0; sys < outputDirs.length; sys++)
+            {
+                total_scores[sys].merge(doc_scores[sys]);
+            }
+        }
+        return total_scores;
+    }
+
+    /**
+     * score several system output dirs against one gold-standard dir, as getScoreDirs does,
+     * but keep the scores of every document apart
+     * @param goldDir
+     * @param outputDirs
+     * @param threads
+     * @return for each document, in file name order, one Scores per output dir;
+     * a system without an answer file for a document is scored as if its answer were empty,
+     * so that every system is scored against the same gold-standard entities
+     * @throws IOException
+     */
+    static public List<Scores[]> getDocumentScores(final File goldDir, final File[] outputDirs, int threads) throws IOException
+    {
+        final int num_sys = outputDirs.length;
+        // file name --> answer file of each system, null where a system has none
+        Map<String, File[]> answers = new TreeMap<String, File[]>();
+        for(int sys = 0; sys < num_sys; sys++)
+        {
+            for(File child : listOutputFiles(outputDirs[sys]))
+            {
+                File[] files = answers.get(child.getName());
+                if(files == null)
+                {
+                    files = new File[num_sys];
+                    answers.put(child.getName(), files);
+                }
+                files[sys] = child;
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            List<Future<Scores[]>> results = new ArrayList<Future<Scores[]>>();
+            for(final Map.Entry<String, File[]> entry : answers.entrySet())
+            {
+                results.add(pool.submit(new Callable<Scores[]>()
+                {
+                    public Scores[] call() throws IOException
+                    {
+                        File gold_child = new File(goldDir, entry.getKey());
+                        List<List<NamedEntity>> list_gold = readEntities(gold_child);
+                        Scores[] ret = new Scores[num_sys];
+                        for(int sys = 0; sys < num_sys; sys++)
+                        {
+                            ret[sys] = new Scores();
+                            File child = entry.getValue()[sys];
+                            if(child != null)
+                            {
+                                getScoreDocument(list_gold, gold_child.getAbsolutePath(), child, ret[sys]);
+                            }
+                            else
+                            {
+                                // an empty answer: every gold entity of the document is missing
+                                System.err.println(outputDirs[sys].getAbsolutePath() + " has no answer for " + entry.getKey() + ", scored as empty");
+                                ret[sys].num_docs++;
+                                for(List<NamedEntity> sent_gold : list_gold)
+                                {
+                                    scoreSentence(sent_gold, Collections.<NamedEntity>emptyList(), ret[sys]);
+                                }
+                            }
+                        }
+                        return ret;
+                    }
+                }));
+            }
+            List<Scores[]> doc_scores = new ArrayList<Scores[]>();
+            for(Future<Scores[]> result : results)
+            {
+                doc_scores.add(getResult(result));
+            }
+            return doc_scores;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
     }
 
     protected static boolean ignoreThe = true; // weather ignore "The" when comparing gold standard and output
@@ -167,126 +887,187 @@ public class Scorer_Independent
         // count # of gold for different types
         for(List<NamedEntity> sent : list_gold)
         {
-            for(NamedEntity token : sent)
-            {
-                if(!token.type.equals(NONE_ENTITY))
-                {
-                    String type = token.type;
-                    Double temp = scores.tab_num_gold.get(type);
-                    if(temp == null)
-                    {
-                        temp = 0.0;
-                    }
-                    temp++;
-                    scores.tab_num_gold.put(type, temp);
-                }
-            }
+            countEntities(sent, scores.tab_num_gold);
+        }
+
+        // count # of ans for different types
+        for(List<NamedEntity> sent : list_ans)
+        {
+            countEntities(sent, scores.tab_num_ans);
+        }
+
+        for(int sent = 0; sent < list_gold.size(); sent++)
+        {
+            getScoreSentence(list_gold.get(sent), list_ans.get(sent), scores);
         }
 
-        // count # of ans for different types
-        for(List<NamedEntity> sent : list_ans)
+    }
+
+    /**
+     * add the number of named entities of each type in a sentence to a type --> num table,
+     * don't consider None-entity
+     * @param sent
+     * @param tab_num
+     */
+    static void countEntities(List<NamedEntity> sent, Map<String, Double> tab_num)
+    {
+        for(NamedEntity token : sent)
         {
-            for(NamedEntity token : sent)
+            if(!token.type.equals(NONE_ENTITY))
             {
-                if(!token.type.equals(NONE_ENTITY))
+                String type = token.type;
+                Double temp = tab_num.get(type);
+                if(temp == null)
                 {
-                    String type = token.type;
-                    Double temp = scores.tab_num_ans.get(type);
-                    if(temp == null)
-                    {
-                        temp = 0.0;
-                    }
-                    temp++;
-                    scores.tab_num_ans.put(type, temp);
+                    temp = 0.0;
                 }
+                temp++;
+                tab_num.put(type, temp);
             }
         }
+    }
 
-        for(int sent = 0; sent < list_gold.size(); sent++)
+    /**
+     * add the gold, answer and correct counts of one sentence to scores
+     * @param sent_gold
+     * @param sent_ans
+     * @param scores
+     */
+    static void scoreSentence(List<NamedEntity> sent_gold, List<NamedEntity> sent_ans, Scores scores)
+    {
+        countEntities(sent_gold, scores.tab_num_gold);
+        scores.num_gold += getNamedEntityNum(sent_gold);
+        countEntities(sent_ans, scores.tab_num_ans);
+        scores.num_ans += getNamedEntityNum(sent_ans);
+        getScoreSentence(sent_gold, sent_ans, scores);
+    }
+
+    /**
+     * count the correct named entities of one sentence, and classify the errors,
+     * first list is gold-standard, 2nd list is answer
+     * both lists are walked once: the gold entity is advanced until it overlaps the answer entity
+     *
+     * every answer entity (other than None) is exactly one of
+     * correct;
+     * a type error, if the first gold entity it overlaps has the same tokens but another type;
+     * a boundary error, if it overlaps a gold entity of its type with other tokens;
+     * a false positive otherwise.
+     * a gold entity (other than None) is missing if no answer entity overlaps it.
+     * entities with the same tokens are added to the confusion matrix, false positives and missing entities
+     * with None as the gold or answer type
+     * @param sent_gold
+     * @param sent_ans
+     * @param scores
+     */
+    static void getScoreSentence(List<NamedEntity> sent_gold, List<NamedEntity> sent_ans, Scores scores)
+    {
+        int indx_gold = 0;
+        // the last gold entity overlapped by an answer entity, gold entities before it are settled
+        int last_hit = -1;
+
+        // count # of correct
+        for(int indx_ans = 0; indx_ans < sent_ans.size(); indx_ans++)
         {
-            List<NamedEntity> sent_gold = list_gold.get(sent);
-            List<NamedEntity> sent_ans = list_ans.get(sent);
+            NamedEntity entity_ans = sent_ans.get(indx_ans);
+            NamedEntity entity_gold = sent_gold.get(indx_gold);
 
-            int indx_ans = 0;
-            int indx_gold = 0;
-            int token_num_ans = 0;
-            int token_num_gold = 0;
+            // while they don't have intersection
+            while(!overlaps(entity_ans, entity_gold))
+            {
+                countMissing(entity_gold, indx_gold > last_hit, scores);
+                indx_gold++;
+                entity_gold = sent_gold.get(indx_gold);
+            }
 
-            // count # of correct
-            for(; indx_ans < sent_ans.size(); indx_ans++)
+            if(entity_ans.typeId == 0)
             {
-                NamedEntity entity_ans =  sent_ans.get(indx_ans);
-                NamedEntity entity_gold = sent_gold.get(indx_gold);
+                continue;
+            }
 
-                int next_token_num_ans = token_num_ans + entity_ans.length();
-                int next_token_num_gold = token_num_gold + entity_gold.length();
+            // the gold entities overlapping the answer are indx_gold ... last_overlap
+            int last_overlap = indx_gold;
+            boolean same_type = entity_gold.typeId == entity_ans.typeId;
+            while(last_overlap + 1 < sent_gold.size() && overlaps(entity_ans, sent_gold.get(last_overlap + 1)))
+            {
+                last_overlap++;
+                same_type |= sent_gold.get(last_overlap).typeId == entity_ans.typeId;
+            }
+            last_hit = Math.max(last_hit, last_overlap);
 
-                // while they don't have intersection
-                // the right part of the statement is for the special case that entity_ans and entity_gold are empty
-                while(! ((token_num_ans < next_token_num_gold && next_token_num_ans > token_num_gold) || (entity_ans.length() == 0 && entity_gold.length() == 0)))
+            if(entity_gold.typeId != 0 && sameSpan(entity_gold, entity_ans))
+            {
+                scores.addConfusion(entity_gold.typeId, entity_ans.typeId, 1);
+                if(entity_gold.typeId != entity_ans.typeId)
                 {
-                    entity_gold = sent_gold.get(indx_gold);
-                    token_num_gold = token_num_gold + entity_gold.length();
-                    indx_gold++;
-                    entity_gold = sent_gold.get(indx_gold);
-                    next_token_num_gold = token_num_gold + entity_gold.length();
+                    scores.num_type_error++;
+                    continue;
                 }
+                // compare "the United States" with "United States", it doesn't make any difference
+                scores.num_correct++;
 
-                if(entity_ans.equals(entity_gold) && !entity_gold.type.equals(NONE_ENTITY))
+                String type = entity_gold.type;
+                Double temp = scores.tab_num_correct.get(type);
+                if(temp == null)
                 {
-                    scores.num_correct++;
-
-                    String type = entity_gold.type;
-                    Double temp = scores.tab_num_correct.get(type);
-                    if(temp == null)
-                    {
-                        temp = 0.0;
-                    }
-                    temp++;
-                    scores.tab_num_correct.put(type, temp);
+                    temp = 0.0;
                 }
-                else if(ignoreThe && !entity_gold.type.equals(NONE_ENTITY) && entity_gold.type.equals(entity_ans.type))
-                {
-                    // compare "the United States" with "United States", it doesn't make any difference
-                    String str_gold = "";
-                    for(int i=0; i<entity_gold.entity.size(); i++)
-                    {
-                        String word = entity_gold.entity.get(i);
-                        if(i==0 && word.equalsIgnoreCase("the"))
-                        {
-                            continue;
-                        }
-                        str_gold += word + " ";
-                    }
-                    String str_ans = "";
-                    for(int i=0; i<entity_ans.entity.size(); i++)
-                    {
-                        String word = entity_ans.entity.get(i);
-                        if(i==0 && word.equalsIgnoreCase("the"))
-                        {
-                            continue;
-                        }
-                        str_ans += word + " ";
-                    }
-                    if(str_ans.equals(str_gold))
-                    {
-                        scores.num_correct++;
+                temp++;
+                scores.tab_num_correct.put(type, temp);
+            }
+            else if(same_type)
+            {
+                scores.num_boundary_error++;
+            }
+            else
+            {
+                scores.false_positive++;
+                scores.addConfusion(0, entity_ans.typeId, 1);
+            }
+        }
 
-                        String type = entity_gold.type;
-                        Double temp = scores.tab_num_correct.get(type);
-                        if(temp == null)
-                        {
-                            temp = 0.0;
-                        }
-                        temp++;
-                        scores.tab_num_correct.put(type, temp);
-                    }
-                }
+        for(; indx_gold < sent_gold.size(); indx_gold++)
+        {
+            countMissing(sent_gold.get(indx_gold), indx_gold > last_hit, scores);
+        }
+    }
 
-                token_num_ans += entity_ans.length();
-            }
+    /**
+     * whether two entities share a character
+     * the right part of the statement is for the special case that both are empty
+     */
+    private static boolean overlaps(NamedEntity entity_ans, NamedEntity entity_gold)
+    {
+        return (entity_ans.charStart < entity_gold.charEnd && entity_ans.charEnd > entity_gold.charStart) || (entity_ans.length() == 0 && entity_gold.length() == 0);
+    }
+
+    /**
+     * whether two entities have the same tokens, whatever their types
+     */
+    private static boolean sameSpan(NamedEntity entity_gold, NamedEntity entity_ans)
+    {
+        return entity_gold.sameTokens(entity_ans, 0, 0) || (ignoreThe && sameIgnoringThe(entity_gold, entity_ans));
+    }
+
+    private static void countMissing(NamedEntity entity_gold, boolean missing, Scores scores)
+    {
+        if(missing && entity_gold.typeId != 0)
+        {
+            scores.num_missing++;
+            scores.addConfusion(entity_gold.typeId, 0, 1);
         }
+    }
 
+    /**
+     * compare the tokens of two entities, ignoring a leading "the" in either
+     * @param entity_gold
+     * @param entity_ans
+     * @return
+     */
+    static boolean sameIgnoringThe(NamedEntity entity_gold, NamedEntity entity_ans)
+    {
+        int skip_gold = entity_gold.size() > 0 && entity_gold.getToken(0).equalsIgnoreCase("the") ? 1 : 0;
+        int skip_ans = entity_ans.size() > 0 && entity_ans.getToken(0).equalsIgnoreCase("the") ? 1 : 0;
+        return entity_gold.sameTokens(entity_ans, skip_gold, skip_ans);
     }
 
     public static void printScores(Scores scores)
@@ -306,6 +1087,13 @@ public class Scorer_Independent
         System.out.println("Recall: " + recall);
         System.out.println("F_1: " + F_1);
 
+        System.out.println("Errors: ");
+        System.out.println("Number of type error: " + scores.num_type_error);
+        System.out.println("Number of boundary error: " + scores.num_boundary_error);
+        System.out.println("Number of false positive: " + scores.false_positive);
+        System.out.println("Number of missing: " + scores.num_missing);
+        printConfusion(scores);
+
         System.out.println("Breakdown performance");
         for(String type : scores.tab_num_ans.keySet())
         {
@@ -337,6 +1125,124 @@ public class Scorer_Independent
         }
     }
 
+    /**
+     * print the confusion matrix of the entities with matching spans,
+     * one row per gold type and one column per answer type, None included
+     * @param scores
+     */
+    public static void printConfusion(Scores scores)
+    {
+        int num_types = scores.getConfusionTypeNum();
+        System.out.println("Confusion matrix (rows gold, columns answer):");
+        StringBuilder row = new StringBuilder(String.format("%-12s", ""));
+        for(int ans = 0; ans < num_types; ans++)
+        {
+            row.append(String.format(" %8s", getTypeName(ans)));
+        }
+        System.out.println(row);
+        for(int gold = 0; gold < num_types; gold++)
+        {
+            row = new StringBuilder(String.format("%-12s", getTypeName(gold)));
+            for(int ans = 0; ans < num_types; ans++)
+            {
+                row.append(String.format(" %8d", scores.getConfusion(gold, ans)));
+            }
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * print the scores of several systems side by side, one column per system
+     * @param names
+     * @param scores
+     */
+    public static void printScoreTable(String[] names, Scores[] scores)
+    {
+        StringBuilder row = new StringBuilder(String.format("%-24s", ""));
+        for(String name : names)
+        {
+            row.append(String.format(" %14s", name.length() > 14 ? name.substring(0, 14) : name));
+        }
+        System.out.println(row);
+
+        printTableRow("Number of docs", scores, -1);
+        printTableRow("Number of correct", scores, 0);
+        printTableRow("Number of answer", scores, 1);
+        printTableRow("Number of gold", scores, 2);
+        printTableRow("Precision", scores, 3);
+        printTableRow("Recall", scores, 4);
+        printTableRow("F_1", scores, 5);
+        printTableRow("Type error", scores, 6);
+        printTableRow("Boundary error", scores, 7);
+        printTableRow("False positive", scores, 8);
+        printTableRow("Missing", scores, 9);
+
+        Set<String> types = new TreeSet<String>();
+        for(Scores s : scores)
+        {
+            types.addAll(s.tab_num_ans.keySet());
+            types.addAll(s.tab_num_gold.keySet());
+        }
+        for(String type : types)
+        {
+            printTableRow(type + " Precision", scores, type, 0);
+            printTableRow(type + " Recall", scores, type, 1);
+            printTableRow(type + " F_1", scores, type, 2);
+        }
+    }
+
+    /**
+     * @param field: -1 docs, 0 correct, 1 answer, 2 gold, 3 precision, 4 recall, 5 F_1,
+     * 6 type error, 7 boundary error, 8 false positive, 9 missing
+     */
+    private static void printTableRow(String title, Scores[] scores, int field)
+    {
+        StringBuilder row = new StringBuilder(String.format("%-24s", title));
+        for(Scores s : scores)
+        {
+            double precision = s.num_correct / s.num_ans;
+            double recall = s.num_correct / s.num_gold;
+            double[] values = {s.num_correct, s.num_ans, s.num_gold, precision, recall, 2 * (precision * recall) / (precision + recall),
+                    s.num_type_error, s.num_boundary_error, s.false_positive, s.num_missing};
+            if(field < 0)
+            {
+                row.append(String.format(" %14d", s.num_docs));
+            }
+            else if(field < 3 || field > 5)
+            {
+                row.append(String.format(" %14.0f", values[field]));
+            }
+            else
+            {
+                row.append(String.format(" %14.4f", values[field]));
+            }
+        }
+        System.out.println(row);
+    }
+
+    /**
+     * @param field: 0 precision, 1 recall, 2 F_1 of one type
+     */
+    private static void printTableRow(String title, Scores[] scores, String type, int field)
+    {
+        StringBuilder row = new StringBuilder(String.format("%-24s", title));
+        for(Scores s : scores)
+        {
+            double num_correct = getCount(s.tab_num_correct, type);
+            double precision = num_correct / getCount(s.tab_num_ans, type);
+            double recall = num_correct / getCount(s.tab_num_gold, type);
+            double[] values = {precision, recall, 2 * (precision * recall) / (precision + recall)};
+            row.append(String.format(" %14.4f", values[field]));
+        }
+        System.out.println(row);
+    }
+
+    private static double getCount(Map<String, Double> tab, String type)
+    {
+        Double num = tab.get(type);
+        return num == null ? 0.0 : num;
+    }
+
     /**
      * count number of named entity in a list,
      * don't consider None-entity (labeled as "O")
@@ -348,12 +1254,24 @@ public class Scorer_Independent
         int ret = 0;
         for(List<NamedEntity> sent : list)
         {
-            for(NamedEntity entity : sent)
+            ret += getNamedEntityNum(sent);
+        }
+        return ret;
+    }
+
+    /**
+     * count number of named entity in one sentence
+     * @param sent
+     * @return
+     */
+    static int getNamedEntityNum(Collection<NamedEntity> sent)
+    {
+        int ret = 0;
+        for(NamedEntity entity : sent)
+        {
+            if(! entity.type.equalsIgnoreCase(NONE_ENTITY))
             {
-                if(! entity.type.equalsIgnoreCase(NONE_ENTITY))
-                {
-                    ret ++;
-                }
+                ret ++;
             }
         }
         return ret;
@@ -372,77 +1290,294 @@ public class Scorer_Independent
     {
         List<List<NamedEntity>> ret = new ArrayList<List<NamedEntity>>();
 
-        BufferedReader reader = new BufferedReader(new FileReader(input));
-        String line = "";
+        EntityReader reader = new EntityReader(input);
+        List<NamedEntity> sent;
+        while((sent = reader.nextSentence()) != null)
+        {
+            ret.add(sent);
+        }
+        reader.close();
+
+        return ret;
+    }
+
+    /**
+     * reads the entities of a file one sentence at a time,
+     * in the format described in readEntities
+     * a sentence is only returned once the empty line ending it is read
+     *
+     * the file is read as UTF-8 bytes into a reusable buffer, lines are found by scanning for '\n',
+     * and only the first and last whitespace-delimited fields of a line are decoded;
+     * labels are looked up in a small table so each distinct label is decoded once
+     */
+    public static class EntityReader implements SentenceSource
+    {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final File input;
+        private final InputStream in;
+
+        private byte[] buf = new byte[1 << 16];
+        private int pos = 0;    // start of the next line
+        private int scan = 0;   // where to resume looking for '\n'
+        private int limit = 0;  // end of the bytes read so far
+        private boolean eof = false;
+        private int lineEnd;    // end of the current line, set by nextLine
+
+        private final LabelTable labels = new LabelTable();
+
+        // labeling state carries over from one sentence to the next, but
+        // entities do not: an I- token starting a sentence is left out
+        private char pre_label_initial = 'O';
+        private String entityType = "";
+        private final SentenceBuilder builder = new SentenceBuilder();
+        private int count = 0;
+
+        public EntityReader(File input) throws IOException
+        {
+            this.input = input;
+            this.in = new FileInputStream(input);
+        }
 
-        char pre_label_initial = 'O';
-        String entityType = "";
-        NamedEntity entity = null;
-        int count = 0;
-        List<NamedEntity> sent = new ArrayList<NamedEntity>();
-        while((line = reader.readLine()) != null)
+        /**
+         * move to the next line, which then spans buf[lineStart, lineEnd)
+         * @return the start of the line, or -1 at the end of the file
+         * @throws IOException
+         */
+        private int nextLine() throws IOException
         {
-            count++;
-            if(line.matches("^\\s*$"))
+            while(true)
             {
-                // an empty line
-                ret.add(sent);
-                sent = new ArrayList<NamedEntity>();
+                for(int i = scan; i < limit; i++)
+                {
+                    if(buf[i] == '\n')
+                    {
+                        int lineStart = pos;
+                        lineEnd = i;
+                        pos = scan = i + 1;
+                        return lineStart;
+                    }
+                }
+                scan = limit;
+                if(eof)
+                {
+                    if(pos < limit)
+                    {
+                        // last line without a line break
+                        int lineStart = pos;
+                        lineEnd = limit;
+                        pos = scan = limit;
+                        return lineStart;
+                    }
+                    return -1;
+                }
+                // keep the partial line and read more
+                if(pos > 0)
+                {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    scan -= pos;
+                    pos = 0;
+                }
+                if(limit == buf.length)
+                {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int n = in.read(buf, limit, buf.length - limit);
+                if(n < 0)
+                {
+                    eof = true;
+                }
+                else
+                {
+                    limit += n;
+                }
             }
-            else
+        }
+
+        /**
+         * the characters matched by the regex \\s
+         */
+        private static boolean isSpace(byte b)
+        {
+            return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+        }
+
+        /**
+         * @return the entities of the next sentence, or null at the end of the file
+         * @throws IOException
+         */
+        public List<NamedEntity> nextSentence() throws IOException
+        {
+            int lineStart;
+            while((lineStart = nextLine()) >= 0)
             {
-                String[] feilds = line.split("\\s");
-                String token = feilds[0];
-                String label = feilds[feilds.length-1];
+                count++;
+
+                // first field: up to the first whitespace (empty if the line starts with one)
+                int tokenEnd = lineStart;
+                while(tokenEnd < lineEnd && !isSpace(buf[tokenEnd]))
+                {
+                    tokenEnd++;
+                }
+                // last field: the last run of non-whitespace
+                int labelEnd = lineEnd;
+                while(labelEnd > lineStart && isSpace(buf[labelEnd - 1]))
+                {
+                    labelEnd--;
+                }
+                if(labelEnd == lineStart)
+                {
+                    // an empty line
+                    return builder.finish();
+                }
+                int labelStart = labelEnd;
+                while(labelStart > lineStart && !isSpace(buf[labelStart - 1]))
+                {
+                    labelStart--;
+                }
+
+                String token = new String(buf, lineStart, tokenEnd - lineStart, UTF8);
+                int label_id = labels.lookup(buf, labelStart, labelEnd - labelStart);
+                String label = labels.label[label_id];
+                String label_type = labels.type[label_id];
+                int label_type_id = labels.typeId[label_id];
 
                 char labelInitial = label.charAt(0);
 
-                String label_type = "";
-                if(label.length() > 2)
+                if(labelInitial == 'I')
                 {
-                    label_type = label.substring(2, label.length());
+                    if(!(pre_label_initial == 'B' || pre_label_initial == 'I'))
+                    {
+                        System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Error: \'I\' follows non-B/I label");
+                    }
+                    else if(!entityType.equalsIgnoreCase(label_type))
+                    {
+                        System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Error: \'I-2\' follows B-1 label");
+                    }
+                    if(!builder.hasEntity())
+                    {
+                        System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Error: \'I\' starts a sentence, token left out");
+                    }
                 }
-                else
+                else if(labelInitial == 'B' || labelInitial == 'O')
                 {
-                    label_type = NONE_ENTITY;
+                    entityType = label_type;
                 }
-
-                switch(labelInitial)
+                if(!builder.add(label, label_type_id, token))
                 {
-                    case 'B':
-                        entityType = label_type;
-                        entity = new NamedEntity(entityType);
-                        entity.addToken(token);
-                        sent.add(entity);
-                        break;
-                    case 'I':
-                        if(!(pre_label_initial == 'B' || pre_label_initial == 'I'))
-                        {
-                            System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Error: \'I\' follows non-B/I label");
-                        }
-                        else if(!entityType.equalsIgnoreCase(label_type))
-                        {
-                            System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Error: \'I-2\' follows B-1 label");
-                        }
-                        entity.addToken(token);
-                        break;
-                    case 'O':
-                        entityType = label_type;
-                        entity = new NamedEntity(entityType);
-                        entity.addToken(token);
-                        sent.add(entity);
-                        break;
-                    default:
-                        System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Invalid label :" + label);
-                        break;
+                    System.err.println(input.getAbsolutePath() + " Line " + count + " " + "Invalid label :" + label);
                 }
 
                 pre_label_initial = labelInitial;
             }
+            // a last sentence without a closing empty line is dropped
+            return null;
         }
-        reader.close();
 
-        return ret;
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * open-addressing table from the bytes of a label to the decoded label and its entity type
+     */
+    static class LabelTable
+    {
+        private byte[][] keys = new byte[16][];
+        private int[] ids = new int[16];
+        String[] label = new String[8];
+        String[] type = new String[8];
+        int[] typeId = new int[8];
+        int size = 0;
+
+        int lookup(byte[] buf, int off, int len)
+        {
+            int h = 1;
+            for(int i = off; i < off + len; i++)
+            {
+                h = 31 * h + buf[i];
+            }
+            int mask = keys.length - 1;
+            for(int slot = h & mask; ; slot = (slot + 1) & mask)
+            {
+                byte[] key = keys[slot];
+                if(key == null)
+                {
+                    return add(slot, buf, off, len);
+                }
+                if(key.length == len && equalBytes(key, buf, off))
+                {
+                    return ids[slot];
+                }
+            }
+        }
+
+        private static boolean equalBytes(byte[] key, byte[] buf, int off)
+        {
+            for(int i = 0; i < key.length; i++)
+            {
+                if(key[i] != buf[off + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int add(int slot, byte[] buf, int off, int len)
+        {
+            String l = new String(buf, off, len, EntityReader.UTF8);
+            int t = getLabelTypeId(l);
+            if(size == label.length)
+            {
+                label = Arrays.copyOf(label, size * 2);
+                type = Arrays.copyOf(type, size * 2);
+                typeId = Arrays.copyOf(typeId, size * 2);
+            }
+            label[size] = l;
+            type[size] = getTypeName(t);
+            typeId[size] = t;
+            keys[slot] = Arrays.copyOfRange(buf, off, off + len);
+            ids[slot] = size;
+            size++;
+            if(size * 2 > keys.length)
+            {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        private void rehash()
+        {
+            byte[][] old_keys = keys;
+            int[] old_ids = ids;
+            keys = new byte[old_keys.length * 2][];
+            ids = new int[keys.length];
+            int mask = keys.length - 1;
+            for(int i = 0; i < old_keys.length; i++)
+            {
+                byte[] key = old_keys[i];
+                if(key == null)
+                {
+                    continue;
+                }
+                int h = 1;
+                for(byte b : key)
+                {
+                    h = 31 * h + b;
+                }
+                int slot = h & mask;
+                while(keys[slot] != null)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                ids[slot] = old_ids[i];
+            }
+        }
     }
 
     /**
@@ -450,17 +1585,41 @@ public class Scorer_Independent
      * the output and gold standard should have consistent file name
      * args[0] system output dir
      * args[1] gold standard dir
+     * or, to compare several systems while reading the gold standard once,
+     * -gold gold_standard_dir system_output_dir_1 ... system_output_dir_n
+     * or, to only rescore the files that changed since the last run,
+     * -cache cache_file system_output_dir gold_standard_dir
      * @param args
      * @throws IOException
      */
     static public void main(String[] args) throws IOException
     {
+        if(args.length >= 3 && args[0].equals("-gold"))
+        {
+            File goldDir = new File(args[1]);
+            File[] outputDirs = new File[args.length - 2];
+            for(int i = 2; i < args.length; i++)
+            {
+                outputDirs[i - 2] = new File(args[i]);
+            }
+            Scorer_Independent.evaluateDirs(goldDir, outputDirs);
+            return;
+        }
+        if(args.length == 4 && args[0].equals("-cache"))
+        {
+            Scorer_Independent.evaluateDir(new File(args[2]), new File(args[3]), new File(args[1]));
+            return;
+        }
         if(args.length != 2)
         {
             System.out.println("Name tagging scorer");
             System.out.println("Usage:");
             System.out.println("args[0] system output dir");
             System.out.println("args[1] gold standard dir");
+            System.out.println("or, to score several systems against one gold standard:");
+            System.out.println("-gold gold_standard_dir system_output_dir_1 ... system_output_dir_n");
+            System.out.println("or, to only rescore the files that changed since the last run:");
+            System.out.println("-cache cache_file system_output_dir gold_standard_dir");
             System.exit(-1);
 
         }
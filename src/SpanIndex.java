@@ -0,0 +1,168 @@
+import java.util.Arrays;
+
+/**
+ * Index of the labeled entity spans of a {@link Corpus}.
+ *
+ * A span starts at a <code>B-</code> label and takes in the
+ * <code>I-</code> labels that follow it within its sentence; its type is
+ * the rest of the <code>B-</code> label. Spans are kept per type in sorted
+ * begin and end arrays (token positions, end exclusive), plus once more
+ * for all types together under {@link #ALL}. Spans never overlap each
+ * other, so both arrays are sorted and range queries are binary searches.
+ */
+public class SpanIndex {
+
+    /** Type id standing for spans of every type. */
+    public static final int ALL = -2;
+
+    private final Corpus.Dictionary types = new Corpus.Dictionary();
+    // slot 0 holds all spans, slot t + 1 the spans of type t
+    private int[][] begins = new int[1][16];
+    private int[][] ends = new int[1][16];
+    private int[] sizes = new int[1];
+    // type of each span in slot 0
+    private int[] allTypes = new int[16];
+
+    private SpanIndex() {
+    }
+
+    /**
+     * Builds the index in one pass over the labels of a corpus.
+     */
+    public static SpanIndex build(Corpus corpus) {
+        SpanIndex index = new SpanIndex();
+        for (int s = 0; s < corpus.numSentences(); s++) {
+            int end = corpus.sentenceEnd(s);
+            int j = corpus.sentenceStart(s);
+            while (j < end) {
+                String label = corpus.label(j);
+                if (label.startsWith("B-")) {
+                    int begin = j;
+                    while (j + 1 < end && corpus.label(j + 1).startsWith("I-"))
+                        j++;
+                    index.add(index.types.lookup(label.substring(2)), begin, j + 1);
+                }
+                j++;
+            }
+        }
+        return index;
+    }
+
+    private void add(int type, int begin, int end) {
+        if (type + 1 >= sizes.length) {
+            int n = type + 2;
+            begins = Arrays.copyOf(begins, n);
+            ends = Arrays.copyOf(ends, n);
+            sizes = Arrays.copyOf(sizes, n);
+            begins[n - 1] = new int[16];
+            ends[n - 1] = new int[16];
+        }
+        if (sizes[0] == allTypes.length)
+            allTypes = Arrays.copyOf(allTypes, sizes[0] * 2);
+        allTypes[sizes[0]] = type;
+        append(0, begin, end);
+        append(type + 1, begin, end);
+    }
+
+    private void append(int slot, int begin, int end) {
+        int n = sizes[slot];
+        if (n == begins[slot].length) {
+            begins[slot] = Arrays.copyOf(begins[slot], n * 2);
+            ends[slot] = Arrays.copyOf(ends[slot], n * 2);
+        }
+        begins[slot][n] = begin;
+        ends[slot][n] = end;
+        sizes[slot] = n + 1;
+    }
+
+    public int numTypes() {
+        return types.size();
+    }
+
+    /**
+     * @return the id of a type, or -1 if no span has it, which every
+     * query treats as a type without spans
+     */
+    public int typeId(String type) {
+        return types.get(type);
+    }
+
+    public String typeName(int type) {
+        return types.word(type);
+    }
+
+    /**
+     * @param type a type id, or {@link #ALL}
+     * @return the number of spans of the type
+     */
+    public int size(int type) {
+        int slot = slot(type);
+        return slot >= 0 ? sizes[slot] : 0;
+    }
+
+    // the arrays of a type, or -1 for a type without spans
+    private int slot(int type) {
+        if (type == ALL)
+            return 0;
+        return type >= 0 && type + 1 < sizes.length ? type + 1 : -1;
+    }
+
+    /** @return the first token of the i-th span of a type */
+    public int begin(int type, int i) {
+        return begins[slot(type)][i];
+    }
+
+    /** @return the position after the last token of the i-th span of a type */
+    public int end(int type, int i) {
+        return ends[slot(type)][i];
+    }
+
+    /** @return the type id of the i-th span of {@link #ALL} */
+    public int type(int i) {
+        return allTypes[i];
+    }
+
+    /**
+     * The spans of a type overlapping tokens <code>[from, to)</code> are
+     * those from <code>firstOverlap(type, from)</code> up to, not including,
+     * <code>endOverlap(type, to)</code>.
+     */
+    public int firstOverlap(int type, int from) {
+        int slot = slot(type);
+        // first span ending after from
+        return slot >= 0 ? search(ends[slot], sizes[slot], from + 1) : 0;
+    }
+
+    public int endOverlap(int type, int to) {
+        int slot = slot(type);
+        // first span beginning at or after to
+        return slot >= 0 ? search(begins[slot], sizes[slot], to) : 0;
+    }
+
+    // first index in a[0, n) holding a value >= key
+    private static int search(int[] a, int n, int key) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the number of spans of a type with each length in tokens
+     */
+    public int[] lengthHistogram(int type) {
+        int n = size(type);
+        int max = 0;
+        for (int i = 0; i < n; i++)
+            max = Math.max(max, end(type, i) - begin(type, i));
+        int[] histogram = new int[max + 1];
+        for (int i = 0; i < n; i++)
+            histogram[end(type, i) - begin(type, i)]++;
+        return histogram;
+    }
+}
@@ -7,7 +7,13 @@ import java.io.ObjectOutputStream;
 import java.io.Reader;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -88,6 +94,129 @@ public class Tagger
             super (new Alphabet(), new LabelAlphabet());
         }
 
+        // gazetteer the GAZ_ features of the first column are matched from, or null
+        private String gazetteerFile = null;
+        private transient GazetteerMatcher gazetteer = null;
+
+        /**
+         * Creates a new instance that also adds the gazetteer features
+         * of each token (the first column of a row).
+         *
+         * @param gazetteerFile a gazetteer or gazetteer index file for
+         * {@link GazetteerMatcher}
+         */
+        public TaggerSentence2FeatureVectorSequence (String gazetteerFile)
+        {
+            this();
+            this.gazetteerFile = gazetteerFile;
+        }
+
+        // whether the tokens are kept as the source of each instance, for
+        // entity-level evaluation
+        private boolean saveTokens = false;
+
+        /**
+         * Keeps the tokens (the first column) of each sentence as the source
+         * of its instance, as {@link EntityEvaluator} needs them.
+         */
+        public void setSaveTokens(boolean saveTokens)
+        {
+            this.saveTokens = saveTokens;
+        }
+
+        // features of the tokens up to windowSize positions away are added,
+        // conjoined with their offset; 0 for none
+        private int windowSize = 0;
+        // (offset, feature index) -> index of the conjoined feature; not
+        // serialized, and filled again from the alphabet as it is used
+        private transient LongIntMap conjunctions;
+
+        // feature indices standing for the positions before and after the sentence
+        private static final int BEFORE = -1;
+        private static final int AFTER = -2;
+        private static final int UNKNOWN = Integer.MIN_VALUE;
+
+        /**
+         * Adds to the features of each token the features of the tokens up
+         * to <code>windowSize</code> positions away, named
+         * <em>feature</em><code>@</code><em>offset</em> (<code>&lt;S&gt;</code>
+         * and <code>&lt;/S&gt;</code> past the ends of the sentence). The
+         * conjoined features are looked up by the indices of the features
+         * they conjoin, so their names are only made once.
+         */
+        public void setWindowSize(int windowSize)
+        {
+            this.windowSize = windowSize;
+        }
+
+        private int[] addWindowFeatures(Alphabet features, int[][] baseIndices, int l)
+        {
+            int n = baseIndices[l].length;
+            for (int d = -windowSize; d <= windowSize; d++)
+            {
+                int j = l + d;
+                n += d == 0 ? 0 : j >= 0 && j < baseIndices.length ? baseIndices[j].length : 1;
+            }
+            int[] indices = Arrays.copyOf(baseIndices[l], n);
+            n = baseIndices[l].length;
+            synchronized (this)
+            {
+                for (int d = -windowSize; d <= windowSize; d++)
+                {
+                    int j = l + d;
+                    if (d == 0)
+                        continue;
+                    if (j < 0 || j >= baseIndices.length)
+                    {
+                        int index = conjunction(features, d, j < 0 ? BEFORE : AFTER);
+                        if (index >= 0)
+                            indices[n++] = index;
+                        continue;
+                    }
+                    for (int f : baseIndices[j])
+                    {
+                        int index = conjunction(features, d, f);
+                        if (index >= 0)
+                            indices[n++] = index;
+                    }
+                }
+            }
+            return n < indices.length ? Arrays.copyOf(indices, n) : indices;
+        }
+
+        private int conjunction(Alphabet features, int offset, int feature)
+        {
+            if (conjunctions == null)
+                conjunctions = new LongIntMap(1 << 16);
+            long key = ((long)offset << 32) | (feature & 0xffffffffL);
+            int index = conjunctions.get(key, UNKNOWN);
+            // a feature left out while the alphabet was stopped is looked up again once it grows
+            if (index == UNKNOWN || (index < 0 && !features.growthStopped()))
+            {
+                String name = feature == BEFORE ? "<S>" : feature == AFTER ? "</S>" : features.lookupObject(feature).toString();
+                index = features.lookupIndex(name + "@" + offset);
+                conjunctions.put(key, index);
+            }
+            return index;
+        }
+
+        // the matcher is not serialized with the pipe, but loaded on first use
+        private synchronized GazetteerMatcher getGazetteer()
+        {
+            if (gazetteer == null && gazetteerFile != null)
+            {
+                try
+                {
+                    gazetteer = GazetteerMatcher.open(new File(gazetteerFile));
+                }
+                catch (java.io.IOException e)
+                {
+                    throw new IllegalStateException("Can't load gazetteer " + gazetteerFile, e);
+                }
+            }
+            return gazetteer;
+        }
+
         /**
          * Parses a string representing a sequence of rows of tokens into an
          * array of arrays of tokens.
@@ -123,6 +252,13 @@ public class Tagger
                 labels = (LabelAlphabet)getTargetAlphabet();
                 target = new LabelSequence (labels, tokens.length);
             }
+            // the first column is the token
+            String[] words = new String[tokens.length];
+            for (int l = 0; l < tokens.length; l++)
+                words[l] = tokens[l].length > 0 ? tokens[l][0] : "";
+            GazetteerMatcher matcher = getGazetteer();
+            String[][] gazetteerFeatures = matcher == null ? null : matcher.features(words);
+            int[][] baseIndices = new int[tokens.length][];
             for (int l = 0; l < tokens.length; l++) {
                 int nFeatures;
                 if (isTargetProcessing())
@@ -133,23 +269,33 @@ public class Tagger
                     target.add(tokens[l][nFeatures]);
                 }
                 else nFeatures = tokens[l].length;
-                ArrayList<Integer> featureIndices = new ArrayList<Integer>();
+                int nGazetteer = gazetteerFeatures != null ? gazetteerFeatures[l].length : 0;
+                int[] featureIndices = new int[nFeatures + nGazetteer];
+                int n = 0;
                 for (int f = 0; f < nFeatures; f++) {
                     int featureIndex = features.lookupIndex(tokens[l][f]);
                     // gdruck
                     // If the data alphabet's growth is stopped, featureIndex
                     // will be -1.  Ignore these features.
                     if (featureIndex >= 0) {
-                        featureIndices.add(featureIndex);
+                        featureIndices[n++] = featureIndex;
                     }
                 }
-                int[] featureIndicesArr = new int[featureIndices.size()];
-                for (int index = 0; index < featureIndices.size(); index++) {
-                    featureIndicesArr[index] = featureIndices.get(index);
+                for (int f = 0; f < nGazetteer; f++) {
+                    int featureIndex = features.lookupIndex(gazetteerFeatures[l][f]);
+                    if (featureIndex >= 0)
+                        featureIndices[n++] = featureIndex;
                 }
+                baseIndices[l] = n < featureIndices.length ? Arrays.copyOf(featureIndices, n) : featureIndices;
+            }
+            for (int l = 0; l < tokens.length; l++) {
+                int[] featureIndicesArr = windowSize > 0 ? addWindowFeatures(features, baseIndices, l) : baseIndices[l];
                 fvs[l] = featureInductionOption.value ? new AugmentableFeatureVector(features, featureIndicesArr, null, featureIndicesArr.length) :
                         new FeatureVector(features, featureIndicesArr);
             }
+            // replaces the separator line LineGroupIterator sets as the source
+            if (saveTokens)
+                carrier.setSource(words);
             carrier.setData(new FeatureVectorSequence(fvs));
             if (isTargetProcessing())
                 carrier.setTarget(target);
@@ -240,6 +386,46 @@ public class Tagger
             Tagger.class, "threads", "INTEGER", true, 1,
             "Number of threads to use for CRF training.", null);
 
+    private static final CommandOption.Integer minStateCountOption = new CommandOption.Integer(
+            Tagger.class, "min-state-count", "INTEGER", true, 0,
+            "If positive, only create label-history states and transitions seen this many times in training (overrides --fully-connected)", null);
+
+    private static final CommandOption.String denseModelOption = new CommandOption.String(
+            Tagger.class, "dense-model", "none|double|float", true, "none",
+            "Also save a compact decoding model (in double or single precision) next to the model file; its Viterbi labels can differ from the CRF's on a few sentences, where MALLET finds a lighter path", null);
+
+    private static final CommandOption.String latticeKernelOption = new CommandOption.String(
+            Tagger.class, "lattice-kernel", "scalar|blocked", true, "scalar",
+            "Recurrences used when decoding with a compact model; either kernel can label a few sentences differently from the CRF, where MALLET finds a lighter path", null);
+
+    private static final CommandOption.Boolean entityEvalOption = new CommandOption.Boolean(
+            Tagger.class, "entity-eval", "true|false", true, false,
+            "Report entity-level precision, recall and F1 on the test data after every training iteration", null);
+
+    private static final CommandOption.String gazetteerOption = new CommandOption.String(
+            Tagger.class, "gazetteer", "FILENAME", true, null,
+            "Gazetteer file (type<TAB>name per line) or compiled gazetteer index to add GAZ_B/GAZ_I features of the first column from", null);
+
+    private static final CommandOption.Boolean pipelineOption = new CommandOption.Boolean(
+            Tagger.class, "pipeline", "true|false", true, false,
+            "Read \"token label\" lines and add POS tag, extracted and gazetteer features in memory, without intermediate files", null);
+
+    private static final CommandOption.String posModelOption = new CommandOption.String(
+            Tagger.class, "pos-model", "FILENAME", true, null,
+            "POS tagger model to add POS= features with in the pipeline (its properties in FILENAME.props)", null);
+
+    private static final CommandOption.String posCacheOption = new CommandOption.String(
+            Tagger.class, "pos-cache", "FILENAME", true, null,
+            "File to cache the POS tags of the pipeline in", null);
+
+    private static final CommandOption.Integer affixOption = new CommandOption.Integer(
+            Tagger.class, "affix", "INTEGER", true, 3,
+            "Longest prefix and suffix features added by the pipeline", null);
+
+    private static final CommandOption.Integer windowOption = new CommandOption.Integer(
+            Tagger.class, "window", "INTEGER", true, 0,
+            "Add the features of the tokens up to INTEGER positions away, conjoined with their offset, when piping", null);
+
     private static final CommandOption.List commandOptions =
             new CommandOption.List (
                     "Training, testing and running a generic tagger.",
@@ -263,7 +449,17 @@ public class Tagger
                             cacheSizeOption,
                             includeInputOption,
                             featureInductionOption,
-                            numThreads
+                            numThreads,
+                            minStateCountOption,
+                            denseModelOption,
+                            latticeKernelOption,
+                            entityEvalOption,
+                            gazetteerOption,
+                            pipelineOption,
+                            posModelOption,
+                            posCacheOption,
+                            affixOption,
+                            windowOption
                     });
 
     /**
@@ -296,10 +492,15 @@ public class Tagger
         Pattern allowedPat = Pattern.compile(allowed);
         if (crf == null) {
             crf = new CRF(training.getPipe(), (Pipe)null);
-            String startName =
-                    crf.addOrderNStates(training, orders, null,
-                            defaultLabel, forbiddenPat, allowedPat,
-                            connected);
+            String startName;
+            if (minStateCountOption.value > 0)
+                startName = addObservedOrderNStates(crf, training, orders,
+                        defaultLabel, forbiddenPat, allowedPat,
+                        minStateCountOption.value);
+            else
+                startName = crf.addOrderNStates(training, orders, null,
+                        defaultLabel, forbiddenPat, allowedPat,
+                        connected);
             for (int i = 0; i < crf.numStates(); i++)
                 crf.getState(i).setInitialWeight (Transducer.IMPOSSIBLE_WEIGHT);
             crf.getState(startName).setInitialWeight(0.0);
@@ -333,17 +534,22 @@ public class Tagger
                 throw new IllegalArgumentException("Multi-threaded feature induction is not yet supported.");
             } else {
                 boolean converged;
-                for (int i = 1; i <= iterations; i++) {
-                    converged = crft.train (training, 1);
-                    if (i % 1 == 0 && eval != null) // Change the 1 to higher integer to evaluate less often
-                        eval.evaluate(crft);
-                    if (viterbiOutputOption.value && i % 10 == 0)
-                        new ViterbiWriter("", new InstanceList[] {training, testing}, new String[] {"training", "testing"}).evaluate(crft);
-                    if (converged)
-                        break;
+                // the trainer's threads are not daemons; stop them even if an
+                // evaluation fails
+                try {
+                    for (int i = 1; i <= iterations; i++) {
+                        converged = crft.train (training, 1);
+                        if (i % 1 == 0 && eval != null) // Change the 1 to higher integer to evaluate less often
+                            eval.evaluate(crft);
+                        if (viterbiOutputOption.value && i % 10 == 0)
+                            new ViterbiWriter("", new InstanceList[] {training, testing}, new String[] {"training", "testing"}).evaluate(crft);
+                        if (converged)
+                            break;
+                    }
+                } finally {
+                    crft.shutdown();
                 }
             }
-            crft.shutdown();
         }
         else {
             CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood (crf);
@@ -386,6 +592,140 @@ public class Tagger
         return crf;
     }
 
+    /**
+     * Add to a CRF only the label-history states and transitions observed in
+     * the training data, instead of every allowed label tuple as
+     * {@link CRF#addOrderNStates} does. A state is the last <em>n</em> labels,
+     * for <em>n</em> the largest of the given orders; the history before a
+     * sequence starts is filled with the default label. A transition is kept
+     * if it occurs at least <code>minCount</code> times and its label pair
+     * passes the forbidden and allowed patterns. Every state also keeps its
+     * transition to the default label, so that any input has a path.
+     * <p>
+     * Each transition gets one weight per order, named after the label history
+     * of that length followed by the next label, as in
+     * {@link CRF#addOrderNStates}.
+     *
+     * @param crf the CRF to add states to
+     * @param training training data with target label sequences
+     * @param orders label Markov orders (main and backoff)
+     * @param defaultLabel default label
+     * @param forbidden label1,label2 transitions matching this are left out
+     * @param allowed label1,label2 transitions must match this
+     * @param minCount minimum number of occurrences of a kept transition
+     * @return the name of the start state
+     */
+    public static String addObservedOrderNStates(CRF crf, InstanceList training, int[] orders,
+                                                 String defaultLabel, Pattern forbidden, Pattern allowed,
+                                                 int minCount)
+    {
+        int order = 0;
+        for (int o : orders)
+            order = Math.max(order, o);
+        if (order < 1)
+            throw new IllegalArgumentException("State pruning needs a label Markov order of at least 1");
+
+        // source state -> next label -> count
+        Map<String, Map<String, Integer>> counts = new LinkedHashMap<String, Map<String, Integer>>();
+        String[] history = new String[order];
+        for (Instance inst : training)
+        {
+            Sequence target = (Sequence)inst.getTarget();
+            Arrays.fill(history, defaultLabel);
+            for (int i = 0; i < target.size(); i++)
+            {
+                String label = target.get(i).toString();
+                String source = concatLabels(history, 0);
+                Map<String, Integer> next = counts.get(source);
+                if (next == null)
+                {
+                    next = new LinkedHashMap<String, Integer>();
+                    counts.put(source, next);
+                }
+                Integer c = next.get(label);
+                next.put(label, c == null ? 1 : c + 1);
+                System.arraycopy(history, 1, history, 0, order - 1);
+                history[order - 1] = label;
+            }
+        }
+
+        Arrays.fill(history, defaultLabel);
+        String start = concatLabels(history, 0);
+        Map<String, List<String>> kept = new LinkedHashMap<String, List<String>>();
+        Set<String> pending = new LinkedHashSet<String>();
+        pending.add(start);
+        int numTransitions = 0;
+        // walk the states reachable from the start state
+        while (!pending.isEmpty())
+        {
+            String source = pending.iterator().next();
+            pending.remove(source);
+            List<String> labels = new ArrayList<String>();
+            kept.put(source, labels);
+            String[] sourceLabels = source.split(",");
+            String last = sourceLabels[order - 1];
+            Map<String, Integer> next = counts.get(source);
+            if (next != null)
+            {
+                for (Map.Entry<String, Integer> e : next.entrySet())
+                {
+                    String pair = last + "," + e.getKey();
+                    if (e.getValue() >= minCount
+                            && !forbidden.matcher(pair).matches() && allowed.matcher(pair).matches())
+                        labels.add(e.getKey());
+                }
+            }
+            if (!labels.contains(defaultLabel))
+                labels.add(defaultLabel);
+            for (String label : labels)
+            {
+                System.arraycopy(sourceLabels, 1, history, 0, order - 1);
+                history[order - 1] = label;
+                String dest = concatLabels(history, 0);
+                if (!kept.containsKey(dest))
+                    pending.add(dest);
+            }
+            numTransitions += labels.size();
+        }
+
+        for (Map.Entry<String, List<String>> e : kept.entrySet())
+        {
+            String[] sourceLabels = e.getKey().split(",");
+            List<String> labels = e.getValue();
+            String[] destinationNames = new String[labels.size()];
+            String[] labelNames = new String[labels.size()];
+            String[][] weightNames = new String[labels.size()][];
+            for (int j = 0; j < labels.size(); j++)
+            {
+                String label = labels.get(j);
+                System.arraycopy(sourceLabels, 1, history, 0, order - 1);
+                history[order - 1] = label;
+                destinationNames[j] = concatLabels(history, 0);
+                labelNames[j] = label;
+                weightNames[j] = new String[orders.length];
+                for (int k = 0; k < orders.length; k++)
+                {
+                    String name = label;
+                    if (orders[k] > 0)
+                        name = concatLabels(sourceLabels, order - orders[k]) + "," + label;
+                    weightNames[j][k] = name;
+                }
+            }
+            crf.addState(e.getKey(), Transducer.IMPOSSIBLE_WEIGHT, 0.0,
+                    destinationNames, labelNames, weightNames);
+        }
+        logger.info("Observed state space: " + kept.size() + " states, " + numTransitions + " transitions");
+        return start;
+    }
+
+    private static String concatLabels(String[] labels, int from)
+    {
+        StringBuffer buf = new StringBuffer(labels[from]);
+        for (int i = from + 1; i < labels.length; i++)
+            buf.append(",").append(labels[i]);
+        return buf.toString();
+    }
+
     /**
      * Test a transducer on the given test data, evaluating accuracy
      * with the given evaluator
@@ -425,6 +765,50 @@ public class Tagger
         return answers;
     }
 
+    /**
+     * Apply a compact model to an input sequence to produce its highest-scoring
+     * output sequence. Each thread keeps one lattice, and reuses its buffers
+     * for as long as it decodes the same model. The output can differ from
+     * that of <code>apply(CRF, ...)</code> where MALLET's Viterbi finds a
+     * lighter path; see {@link DenseLattice}.
+     *
+     * @param model the <code>DenseCRF</code>
+     * @param input the input sequence
+     * @param k the number of answers to return; only 1 is supported
+     * @return array holding the highest-scoring output sequence
+     */
+    public static Sequence[] apply(DenseCRF model, Sequence input, int k)
+    {
+        if (k != 1)
+            throw new IllegalArgumentException("Compact models only support 1-best decoding; got k=" + k);
+        DenseLattice lattice = lattices.get();
+        if (lattice == null || lattice.getModel() != model)
+        {
+            lattice = DenseLattice.create(model, latticeKernelOption.value);
+            lattices.set(lattice);
+        }
+        return new Sequence[] { lattice.bestOutputSequence(input) };
+    }
+
+    // the lattice each thread decodes compact models with, kept while the model stays the same
+    private static final ThreadLocal<DenseLattice> lattices = new ThreadLocal<DenseLattice>();
+
+    /**
+     * Apply a decoder generated by {@link DecoderGenerator} to an input sequence
+     * to produce its highest-scoring output sequence.
+     *
+     * @param decoder the <code>GeneratedDecoder</code>
+     * @param input the input sequence
+     * @param k the number of answers to return; only 1 is supported
+     * @return array holding the highest-scoring output sequence
+     */
+    public static Sequence[] apply(GeneratedDecoder decoder, Sequence input, int k)
+    {
+        if (k != 1)
+            throw new IllegalArgumentException("Generated decoders only support 1-best decoding; got k=" + k);
+        return new Sequence[] { decoder.transduce(input) };
+    }
+
     public static void main (String[] args) throws Exception
     {
         Reader trainingFile = null, testFile = null;
@@ -432,28 +816,67 @@ public class Tagger
         int numEvaluations = 0;
         int iterationsBetweenEvals = 16;
         int restArgs = commandOptions.processOptions(args);
-        trainingFile = new FileReader(new File(args[0]));
-        testFile = new FileReader(new File(args[1]));
+        if (args.length - restArgs < 3)
+        {
+            System.out.println("Usage: java Tagger [options] training-file test-file model-file");
+            System.exit(-1);
+        }
+        String modelFile = args[restArgs + 2];
+        // check the options used after training before spending a training run
+        boolean single = denseModelOption.value.equals("float");
+        if (!single && !denseModelOption.value.equals("double") && !denseModelOption.value.equals("none"))
+            throw new IllegalArgumentException("Unknown dense-model option: " + denseModelOption.value);
+        if (!latticeKernelOption.value.equals("scalar") && !latticeKernelOption.value.equals("blocked"))
+            throw new IllegalArgumentException("Unknown lattice-kernel option: " + latticeKernelOption.value);
+        trainingFile = new FileReader(new File(args[restArgs]));
+        testFile = new FileReader(new File(args[restArgs + 1]));
 
         Pipe p = null;
         CRF crf = null;
         TransducerEvaluator eval = null;
 
-        p = new TaggerSentence2FeatureVectorSequence();
-        p.getTargetAlphabet().lookupIndex(defaultOption.value);
+        if (pipelineOption.value)
+        {
+            CorpusPipeline pipeline = new CorpusPipeline(true, posModelOption.value, posCacheOption.value,
+                    affixOption.value, windowOption.value, gazetteerOption.value);
+            p = pipeline.getPipe();
+            p.getTargetAlphabet().lookupIndex(defaultOption.value);
+            try
+            {
+                trainingData = pipeline.read(trainingFile, numThreads.value);
+                logger.info
+                        ("Number of features in training data: "+p.getDataAlphabet().size());
+                pipeline.getLastPipe().setSaveTokens(entityEvalOption.value);
+                testData = pipeline.read(testFile, numThreads.value);
+            }
+            finally
+            {
+                pipeline.close();
+            }
+        }
+        else
+        {
+            TaggerSentence2FeatureVectorSequence rows = gazetteerOption.value == null
+                    ? new TaggerSentence2FeatureVectorSequence()
+                    : new TaggerSentence2FeatureVectorSequence(gazetteerOption.value);
+            rows.setWindowSize(windowOption.value);
+            p = rows;
+            p.getTargetAlphabet().lookupIndex(defaultOption.value);
 //Train
-        p.setTargetProcessing(true);
-        trainingData = new InstanceList(p);
-        trainingData.addThruPipe(
-                new LineGroupIterator(trainingFile,
-                        Pattern.compile("^\\s*$"), true));
-        logger.info
-                ("Number of features in training data: "+p.getDataAlphabet().size());
+            p.setTargetProcessing(true);
+            trainingData = new InstanceList(p);
+            trainingData.addThruPipe(
+                    new LineGroupIterator(trainingFile,
+                            Pattern.compile("^\\s*$"), true));
+            logger.info
+                    ("Number of features in training data: "+p.getDataAlphabet().size());
 //Test
-        testData = new InstanceList(p);
-        testData.addThruPipe(
-                new LineGroupIterator(testFile,
-                        Pattern.compile("^\\s*$"), true));
+            rows.setSaveTokens(entityEvalOption.value);
+            testData = new InstanceList(p);
+            testData.addThruPipe(
+                    new LineGroupIterator(testFile,
+                            Pattern.compile("^\\s*$"), true));
+        }
 
         logger.info ("Number of predicates: "+p.getDataAlphabet().size());
 
@@ -467,16 +890,29 @@ public class Tagger
             logger.info(buf.toString());
         }
 
+        if (entityEvalOption.value)
+            eval = new EntityEvaluator(new InstanceList[] {testData}, new String[] {"Testing"},
+                    numThreads.value);
+
         crf = train(trainingData, testData, eval,
                 ordersOption.value, defaultOption.value,
                 forbiddenOption.value, allowedOption.value,
                 connectedOption.value, iterationsOption.value,
                 gaussianVarianceOption.value, crf);
         ObjectOutputStream ss =
-                new ObjectOutputStream(new FileOutputStream(args[2]));
+                new ObjectOutputStream(new FileOutputStream(modelFile));
         ss.writeObject(crf);
         ss.close();
 
+        if (!denseModelOption.value.equals("none"))
+        {
+            DenseCRF dense = new DenseCRF(crf, single);
+            logger.info("Compact model: " + dense.sizeInBytes() + " bytes");
+            ss = new ObjectOutputStream(new FileOutputStream(modelFile + ".dense"));
+            ss.writeObject(dense);
+            ss.close();
+        }
+
     }
 }
 
@@ -1,7 +1,15 @@
 import java.io.*;
 import java.util.*;
 import java.io.IOException;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.ling.Word;
 import edu.stanford.nlp.tagger.maxent.MaxentTagger;
 import edu.stanford.nlp.tagger.maxent.TaggerConfig;
 
@@ -15,22 +23,11 @@ import edu.stanford.nlp.tagger.maxent.TaggerConfig;
  */
 public class TrainData {
 
-    public Vector nameVector;
+    public final Corpus corpus;
+    // per-token features, allocated when the first one is set
     private String[] featureVector;
-    public Vector labelVector;
 
 
-    private class LabelElement {
-        private int begin=0;
-        private int end=0;
-        private LabelElement() {
-        }
-        public void setBegin(int i) { begin = i;}
-        public void setEnd(int i) { end = i;}
-        public int getBegin() {return begin;}
-        public int getEnd() {return end;}
-    }
-
     private class LabelData {
         public String name;
         public Set label;
@@ -38,83 +35,48 @@ public class TrainData {
 
 
     public TrainData(BufferedReader in) throws IOException {
-        nameVector = new Vector();
-        labelVector = new Vector();
-        featureVector = new String[1000000];
-        String line=null;
-        String token=null;
-        while ((line = in.readLine()) != null) {
-            StringTokenizer st = new StringTokenizer(line);
-            if (st.hasMoreTokens()) {
-                nameVector.add(st.nextToken());
-                //tokens between first and last go into features vector
-                while (st.hasMoreTokens()) {
-                    token = st.nextToken();
-                }
-                //last token goes into label vector
-                labelVector.add(token);
-            }
-            else {
-                nameVector.add("");
-                labelVector.add("");
-            }
-        }
+        //first token of a line is the name, last token the label
+        corpus = Corpus.load(in);
     }
 
-    public HashMap labelSet = null;
-
-    public void createLabelSet(Vector nameList) {
-        labelSet = new HashMap();
-        String lbl = null;
-        String name = null;
-        Vector v;
-        int j = 0;
-        while (j<nameList.size()) {
-            lbl = (String)nameList.get(j);
-            if (lbl.startsWith("B-")) {
-                LabelElement element = new LabelElement();
-                element.setBegin(j);
-                while (((String)nameList.get(j+1)).startsWith("I-")) j++;
-                element.setEnd(j);
-                name = lbl.substring(2);
-                if (labelSet.get(name) == null) {
-                    v = new Vector();
-                    labelSet.put(name, v);
-                }
-                else {
-                    v = (Vector)labelSet.get(name);
-                }
-                v.add(element);
-            }
-            j++;
-        }
+    public SpanIndex labelSet = null;
+
+    public void createLabelSet() {
+        labelSet = SpanIndex.build(corpus);
     }
 
     public void printLabelSet() {
         System.out.println("PER");
-        Iterator it = ((Vector)(labelSet.get("PER"))).iterator();
-        while (it.hasNext()) {
-            LabelElement pair = (LabelElement)it.next();
-            if (pair.getBegin() != pair.getEnd()) {
-                for (int i = pair.getBegin(); i <= pair.getEnd(); i++ ) {
-                   System.out.print(nameVector.get(i) + " ");
+        int type = labelSet.typeId("PER");
+        for (int e = 0; e < labelSet.size(type); e++) {
+            if (labelSet.end(type, e) - labelSet.begin(type, e) > 1) {
+                for (int i = labelSet.begin(type, e); i < labelSet.end(type, e); i++ ) {
+                   System.out.print(corpus.token(i) + " ");
                 }
                 System.out.println();
             }
         }
     }
 
-    public void addGazetteerFeature() {
-        System.out.println("GPE");
-        Iterator it = ((Vector)(labelSet.get("GPE"))).iterator();
-        while (it.hasNext()) {
-            LabelElement pair = (LabelElement)it.next();
-            if (pair.getBegin() != pair.getEnd()) {
-                for (int i = pair.getBegin(); i <= pair.getEnd(); i++ ) {
-                    //System.out.print(nameVector.get(i) + " ");
-                    featureVector[i] = new String("GAZET");
-                }
-                //System.out.println();
+    /**
+     * Sets the feature of every token inside a gazetteer name to its
+     * space-separated GAZ_B/GAZ_I features.
+     */
+    public void addGazetteerFeature(GazetteerMatcher gazetteer) {
+        if (featureVector == null) featureVector = new String[corpus.size()];
+        for (int s = 0; s < corpus.numSentences(); s++) {
+            int start = corpus.sentenceStart(s);
+            String[] words = new String[corpus.sentenceEnd(s) - start];
+            for (int i = 0; i < words.length; i++)
+                words[i] = corpus.token(start + i);
+            String[][] features = gazetteer.features(words);
+            for (int i = 0; i < words.length; i++) {
+                if (features[i].length == 0)
+                    continue;
+                StringBuilder sb = new StringBuilder(features[i][0]);
+                for (int f = 1; f < features[i].length; f++)
+                    sb.append(' ').append(features[i][f]);
+                featureVector[start + i] = sb.toString();
             }
         }
     }
@@ -122,12 +84,12 @@ public class TrainData {
     public void printFeatures() {
         System.out.println("Features");
         int it = 0;
-        while (it < featureVector.length) {
+        while (featureVector != null && it < featureVector.length) {
             if (featureVector[it] == null) {
                 //System.out.println("UNK");
             }
             else {
-                System.out.print(nameVector.get(it) + " ");
+                System.out.print(corpus.token(it) + " ");
                 System.out.println((String) featureVector[it]);
             }
             it++;
@@ -136,61 +98,138 @@ public class TrainData {
 
 
     public void posTag() throws ClassNotFoundException, IOException {
+        PosTagCache cache = new PosTagCache(new File("/Users/sinanasa/anlp/name_data/pos.cache"),
+                new File("/Users/sinanasa/anlp/stanford-postagger/models/wsj-0-18-left3words.tagger"), 100000);
+        try {
+            posTag(Runtime.getRuntime().availableProcessors(), cache);
+            System.out.println("Cached sentences: " + cache.getHits() + ", tagged sentences: " + cache.getMisses());
+        } finally {
+            cache.close();
+        }
+    }
+
+    // sentences tagged by one task
+    private static final int TAG_BATCH = 64;
+
+    /**
+     * POS-tags every sentence and writes one "token tag" line per token, with
+     * a blank line after each sentence. The corpus tokens are tagged as they
+     * are, without retokenizing. Batches of sentences are tagged on a pool of
+     * threads, each with its own tagger, and written in corpus order.
+     * Sentences found in the cache are not tagged again, and a tagger is
+     * only loaded by a thread that has a sentence to tag.
+     *
+     * @param cache tags of earlier runs with the same model, or null
+     */
+    public void posTag(int threads, final PosTagCache cache) throws ClassNotFoundException, IOException {
+        threads = Math.max(1, threads);
         /////////////////////
         // Initialize the tagger
-        Properties prop = new Properties();
+        final Properties prop = new Properties();
         prop.load((InputStream)new FileInputStream("/Users/sinanasa/anlp/stanford-postagger/models/wsj-0-18-left3words.tagger.props"));
-        TaggerConfig tc = new TaggerConfig(prop);
-        MaxentTagger tagger = new MaxentTagger("/Users/sinanasa/anlp/stanford-postagger/models/wsj-0-18-left3words.tagger", tc);
+        final String model = "/Users/sinanasa/anlp/stanford-postagger/models/wsj-0-18-left3words.tagger";
+        // MaxentTagger is not safe to share, so every pool thread loads its own
+        final ThreadLocal<MaxentTagger> taggers = new ThreadLocal<MaxentTagger>() {
+            protected MaxentTagger initialValue() {
+                try {
+                    return new MaxentTagger(model, new TaggerConfig(prop));
+                } catch (Exception e) {
+                    throw new IllegalStateException("Can't load tagger " + model, e);
+                }
+            }
+        };
 
         FileWriter fstream = new FileWriter("/Users/sinanasa/anlp/name_data/test_nwire_pos");
         BufferedWriter out = new BufferedWriter(fstream);
 
-        String tagged = new String();
-        String sentence = new String();
-        String token = new String();
-        //tagger.tagTokenizedString(nameVector.toString());
-        String tokenName = new String();
-
-        Iterator it = (Iterator) nameVector.iterator();
-        while (it.hasNext()) {
-            token = (String)it.next();
-            while (!token.equals("")) {
-                sentence = sentence + token + " ";
-                token = (String)it.next();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // batches being tagged, oldest first; bounded so output is written as it is ready
+            LinkedList<Future<String[][]>> pending = new LinkedList<Future<String[][]>>();
+            int first = 0;
+            for (int start = 0; start < corpus.numSentences(); start += TAG_BATCH) {
+                final int from = start, to = Math.min(corpus.numSentences(), start + TAG_BATCH);
+                pending.add(pool.submit(new Callable<String[][]>() {
+                    public String[][] call() throws IOException {
+                        return tagSentences(taggers, cache, from, to);
+                    }
+                }));
+                if (pending.size() >= threads * 4) {
+                    writeTagged(out, first, getTags(pending.removeFirst()));
+                    first += TAG_BATCH;
+                }
             }
-            // The tagged string
-            tagged = tagger.tagString(sentence);
-
-            // Output the result
-            //System.out.println(sentence);
-            //System.out.println(tagged);
-
-            StringTokenizer stName = new StringTokenizer(sentence);
-            //Tokenize the tagged and print tags
-            StringTokenizer st = new StringTokenizer(tagged);
-            while (st.hasMoreTokens()) {
-                token = st.nextToken();
-                tokenName = stName.nextToken();
-                //System.out.println(tokenName + " " + token);
-                out.write(token.substring(0, token.indexOf("~")) + " ");
-                out.write(token.substring(token.indexOf("~")+1, token.length()) + "\n");
+            while (!pending.isEmpty()) {
+                writeTagged(out, first, getTags(pending.removeFirst()));
+                first += TAG_BATCH;
             }
-            out.write("\n");
-            sentence = "";
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    private String[][] tagSentences(ThreadLocal<MaxentTagger> taggers, PosTagCache cache,
+                                    int from, int to) throws IOException {
+        String[][] tags = new String[to - from][];
+        List<HasWord> words = new ArrayList<HasWord>();
+        for (int s = from; s < to; s++) {
+            Corpus.Sentence sentence = corpus.sentence(s);
+            if (cache != null && (tags[s - from] = cache.get(sentence)) != null)
+                continue;
+            words.clear();
+            for (int i = 0; i < sentence.size(); i++)
+                words.add(new Word(sentence.token(i)));
+            List<TaggedWord> tagged = taggers.get().tagSentence(words);
+            tags[s - from] = new String[tagged.size()];
+            for (int i = 0; i < tagged.size(); i++)
+                tags[s - from][i] = tagged.get(i).tag();
+            if (cache != null)
+                cache.put(sentence, tags[s - from]);
+        }
+        return tags;
+    }
+
+    private void writeTagged(Writer out, int first, String[][] tags) throws IOException {
+        for (int s = 0; s < tags.length; s++) {
+            Corpus.Sentence sentence = corpus.sentence(first + s);
+            for (int i = 0; i < sentence.size(); i++) {
+                out.write(sentence.token(i));
+                out.write(' ');
+                out.write(tags[s][i]);
+                out.write('\n');
+            }
+            out.write('\n');
+        }
+    }
+
+    private static String[][] getTags(Future<String[][]> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while tagging");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
         }
-        out.close();
     }
 
 
     public static void main (String[] args) throws Exception {
         TrainData td = new TrainData(new BufferedReader(new FileReader("/Users/sinanasa/anlp/name_data/test_nwire")));
-        for (Object o : td.nameVector) {
-            System.out.println(o);
+        for (int s = 0; s < td.corpus.numSentences(); s++) {
+            Corpus.Sentence sentence = td.corpus.sentence(s);
+            for (int i = 0; i < sentence.size(); i++)
+                System.out.println(sentence.token(i));
+            System.out.println();
         }
-        td.createLabelSet(td.labelVector);
+        td.createLabelSet();
         ////td.printLabelSet();
-        //td.addGazetteerFeature();
+        //td.addGazetteerFeature(GazetteerMatcher.open(new File("/Users/sinanasa/anlp/name_data/gazetteer.idx")));
         //td.printFeatures();
 
 /*
@@ -202,7 +241,7 @@ public class TrainData {
 */
 
         td.posTag();
-        System.out.println("Size of namespace: " + td.nameVector.size());
+        System.out.println("Size of namespace: " + td.corpus.size());
     }
 
 }